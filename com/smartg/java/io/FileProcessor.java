@@ -40,6 +40,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
+import java.util.concurrent.Executor;
 
 import com.imagero.java.util.Debug;
 import com.smartg.java.vfs.JFile;
@@ -59,14 +60,16 @@ import com.smartg.java.vfs.VFilenameFilter;
  * For single-threaded processing pass FileProcesor as argument to Thread
  * constructor or add it as task to ThreadManager.
  * 
- * For multi-threaded processing do following: FileProcessor fp; ThreadManager
- * tm = new ThreadManager(<numberOfThreads>); tm.add(fp.getJobs());
+ * For multi-threaded processing set executor (e.g. VfsExecutor.getDefault())
+ * with setExecutor(). Directory tree is still walked by one thread, but
+ * files are processed by executor, walk() returns when all files are done.
  * 
  * It is possible to abort or break processing. If processing was aborted it
  * can't be continued. If processing was breaked it can be continued just by
  * passing processor to Thread.
  * 
- * In multi-threaded mode use ThreadManager to pause/abort processing.
+ * In multi-threaded mode abortJob() stops walk and skips files which are not
+ * started yet.
  * 
  * @author Andrey Kuznetsov
  */
@@ -79,6 +82,13 @@ public abstract class FileProcessor implements Runnable, FileVisitor<Path> {
 
     private volatile boolean aborted;
 
+    private Executor executor;
+    /**
+     * count of files submitted to executor and not finished yet
+     */
+    private int pending;
+    private final Object lock = new Object();
+
     /**
      * create new FileProcessor
      * 
@@ -108,6 +118,18 @@ public abstract class FileProcessor implements Runnable, FileVisitor<Path> {
 	this.filter = filter;
     }
 
+    /**
+     * Set executor for processing of files (null for processing in walking
+     * thread).
+     */
+    public void setExecutor(Executor executor) {
+	this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+	return executor;
+    }
+
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
 	if (aborted) {
 	    return FileVisitResult.TERMINATE;
@@ -122,9 +144,11 @@ public abstract class FileProcessor implements Runnable, FileVisitor<Path> {
 	if(!filter.accept(dir, name)) {
 	    return FileVisitResult.CONTINUE;
 	}
-	StringBuffer sb = process(path);
-	if (dstD != null && sb != null) {
-	    save(path, sb);
+	Executor e = executor;
+	if (e != null) {
+	    submit(e, path);
+	} else {
+	    processFile(path);
 	}
 	if (aborted) {
 	    return FileVisitResult.TERMINATE;
@@ -146,6 +170,44 @@ public abstract class FileProcessor implements Runnable, FileVisitor<Path> {
 	return FileVisitResult.CONTINUE;
     }
 
+    private void processFile(Path path) {
+	StringBuffer sb = process(path);
+	if (dstD != null && sb != null) {
+	    save(path, sb);
+	}
+    }
+
+    private void submit(Executor e, final Path path) {
+	synchronized (lock) {
+	    pending++;
+	}
+	try {
+	    e.execute(new Runnable() {
+		public void run() {
+		    try {
+			if (!aborted) {
+			    processFile(path);
+			}
+		    } finally {
+			done();
+		    }
+		}
+	    });
+	} catch (RuntimeException ex) {
+	    done();
+	    throw ex;
+	}
+    }
+
+    private void done() {
+	synchronized (lock) {
+	    pending--;
+	    if (pending == 0) {
+		lock.notifyAll();
+	    }
+	}
+    }
+
     public void run() {
 	walk();
     }
@@ -157,6 +219,17 @@ public abstract class FileProcessor implements Runnable, FileVisitor<Path> {
 	} catch (IOException ex) {
 	    ex.printStackTrace();
 	}
+	synchronized (lock) {
+	    while (pending > 0) {
+		try {
+		    lock.wait();
+		} catch (InterruptedException ex) {
+		    aborted = true;
+		    Thread.currentThread().interrupt();
+		    return;
+		}
+	    }
+	}
     }
 
     public void abortJob() {
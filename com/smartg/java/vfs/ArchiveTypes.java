@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Registry of archive types by file name suffix. JFile, FtpFile and archive
+ * views use it to decide which files are shown as archives.
+ * 
+ * Suffixes are case insensitive, the longest matching suffix wins (so
+ * ".tar.gz" is preferred to ".gz").
+ * 
+ * @author Andrey Kuznetsov
+ */
+public final class ArchiveTypes {
+
+	/** registered types, sorted by suffix length (longest first) */
+	private static volatile Type[] types = new Type[0];
+
+	static {
+		ArchiveFactory zip = new ArchiveFactory() {
+			public VFile create(VFile file) {
+				return new VZipFile(file);
+			}
+		};
+		ArchiveFactory tar = new ArchiveFactory() {
+			public VFile create(VFile file) {
+				return new VTarFile(file, false);
+			}
+		};
+		ArchiveFactory tgz = new ArchiveFactory() {
+			public VFile create(VFile file) {
+				return new VTarFile(file, true);
+			}
+		};
+		ArchiveFactory gz = new ArchiveFactory() {
+			public VFile create(VFile file) {
+				return new VGzipFile(file);
+			}
+		};
+		register(".zip", zip);
+		register(".jar", zip);
+		register(".tar", tar);
+		register(".tar.gz", tgz);
+		register(".tgz", tgz);
+		register(".gz", gz);
+	}
+
+	private ArchiveTypes() {
+	}
+
+	/**
+	 * Register (or replace) archive type.
+	 * 
+	 * @param suffix
+	 *            file name suffix, e.g. ".tar.gz"
+	 */
+	public static synchronized void register(String suffix, ArchiveFactory factory) {
+		String s = suffix.toUpperCase(Locale.ENGLISH);
+		List<Type> list = new ArrayList<Type>();
+		for (Type t : types) {
+			if (!t.suffix.equals(s)) {
+				list.add(t);
+			}
+		}
+		list.add(new Type(s, factory));
+		Collections.sort(list, new Comparator<Type>() {
+			public int compare(Type t0, Type t1) {
+				return t1.suffix.length() - t0.suffix.length();
+			}
+		});
+		types = list.toArray(new Type[list.size()]);
+	}
+
+	public static synchronized void unregister(String suffix) {
+		String s = suffix.toUpperCase(Locale.ENGLISH);
+		List<Type> list = new ArrayList<Type>();
+		for (Type t : types) {
+			if (!t.suffix.equals(s)) {
+				list.add(t);
+			}
+		}
+		types = list.toArray(new Type[list.size()]);
+	}
+
+	/**
+	 * @return ArchiveFactory for name or null if name is not an archive
+	 */
+	public static ArchiveFactory find(String name) {
+		if (name == null) {
+			return null;
+		}
+		Type[] types = ArchiveTypes.types;
+		int length = name.length();
+		for (Type t : types) {
+			int n = t.suffix.length();
+			if (length > n && name.regionMatches(true, length - n, t.suffix, 0, n)) {
+				return t.factory;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wrap file into archive view if its name has registered suffix.
+	 * 
+	 * @return archive view or file itself
+	 */
+	public static VFile wrap(VFile file) {
+		ArchiveFactory factory = find(file.getName());
+		if (factory != null) {
+			return factory.create(file);
+		}
+		return file;
+	}
+
+	/**
+	 * Get archive file of archive view (e.g. to copy archive as a file and not
+	 * as a directory).
+	 * 
+	 * @return archive file or file itself if it is not an archive view
+	 */
+	static VFile unwrap(VFile file) {
+		if (file instanceof VZipFile) {
+			return ((VZipFile) file).getFile();
+		}
+		if (file instanceof VTarFile) {
+			return ((VTarFile) file).getFile();
+		}
+		if (file instanceof VGzipFile) {
+			return ((VGzipFile) file).getFile();
+		}
+		return file;
+	}
+
+	static class Type {
+		final String suffix;
+		final ArchiveFactory factory;
+
+		Type(String suffix, ArchiveFactory factory) {
+			this.suffix = suffix;
+			this.factory = factory;
+		}
+	}
+}
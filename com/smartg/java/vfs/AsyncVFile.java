@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous VFile operations. Every operation runs blocking VFile method
+ * on executor (by default VfsExecutor.getDefault(), which uses virtual
+ * threads if available), so many operations can be started without thread
+ * per call.
+ * Reading and writing of local files (JFile) uses AsynchronousFileChannel.
+ * 
+ * Errors complete returned future exceptionally.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public final class AsyncVFile {
+
+	private static volatile Executor executor;
+
+	private AsyncVFile() {
+	}
+
+	/**
+	 * Set executor for asynchronous operations. Null restores default
+	 * executor (VfsExecutor.getDefault()).
+	 */
+	public static void setExecutor(Executor e) {
+		executor = e;
+	}
+
+	public static Executor getExecutor() {
+		Executor e = executor;
+		if (e == null) {
+			e = VfsExecutor.getDefault();
+		}
+		return e;
+	}
+
+	/**
+	 * Run task on executor.
+	 */
+	public static <T> CompletableFuture<T> supply(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						future.complete(task.call());
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+		}
+		return future;
+	}
+
+	public static CompletableFuture<VFile[]> listFilesAsync(final VFile dir) {
+		return supply(new Callable<VFile[]>() {
+			public VFile[] call() {
+				return dir.listFiles();
+			}
+		});
+	}
+
+	public static CompletableFuture<VFile[]> listFilesAsync(final VFile dir, final VFilenameFilter filter) {
+		return supply(new Callable<VFile[]>() {
+			public VFile[] call() {
+				return dir.listFiles(filter);
+			}
+		});
+	}
+
+	public static CompletableFuture<String[]> listAsync(final VFile dir) {
+		return supply(new Callable<String[]>() {
+			public String[] call() {
+				return dir.list();
+			}
+		});
+	}
+
+	public static CompletableFuture<Boolean> existsAsync(final VFile file) {
+		return supply(new Callable<Boolean>() {
+			public Boolean call() {
+				return file.exists();
+			}
+		});
+	}
+
+	public static CompletableFuture<Long> lengthAsync(final VFile file) {
+		return supply(new Callable<Long>() {
+			public Long call() {
+				return file.length();
+			}
+		});
+	}
+
+	public static CompletableFuture<Long> lastModifiedAsync(final VFile file) {
+		return supply(new Callable<Long>() {
+			public Long call() {
+				return file.lastModified();
+			}
+		});
+	}
+
+	public static CompletableFuture<Boolean> deleteAsync(final VFile file) {
+		return supply(new Callable<Boolean>() {
+			public Boolean call() {
+				return file.delete();
+			}
+		});
+	}
+
+	public static CompletableFuture<Boolean> mkdirsAsync(final VFile file) {
+		return supply(new Callable<Boolean>() {
+			public Boolean call() {
+				return file.mkdirs();
+			}
+		});
+	}
+
+	/**
+	 * Copy file (see VfsUtil.copyFile).
+	 */
+	public static CompletableFuture<Boolean> copyAsync(final VFile src, final VFile dst) {
+		return supply(new Callable<Boolean>() {
+			public Boolean call() {
+				return VfsUtil.copyFile(src, dst);
+			}
+		});
+	}
+
+	/**
+	 * Copy directory (see VfsUtil.copyDirectory).
+	 */
+	public static CompletableFuture<Void> copyDirectoryAsync(final VFile src, final VFile dst) {
+		return supply(new Callable<Void>() {
+			public Void call() {
+				VfsUtil.copyDirectory(src, dst);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Read whole file.
+	 */
+	public static CompletableFuture<byte[]> readAllAsync(final VFile file) {
+		Path path = getLocalPath(file);
+		if (path != null) {
+			return readAll(path);
+		}
+		return supply(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				InputStream in = file.getInputStream();
+				try {
+					return readAll(in);
+				} finally {
+					in.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read part of file (see VfsUtil.read()).
+	 * 
+	 * @return count of read bytes or -1 if offset is at or after end of file
+	 */
+	public static CompletableFuture<Integer> readAsync(final VFile file, final long offset, final ByteBuffer dst) {
+		Path path = getLocalPath(file);
+		if (path != null) {
+			final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+			try {
+				AsynchronousFileChannel channel = open(path, EnumSet.of(StandardOpenOption.READ));
+				read(channel, dst, offset, 0, future);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+			return future;
+		}
+		return supply(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				return VfsUtil.read(file, offset, dst);
+			}
+		});
+	}
+
+	/**
+	 * Replace content of file.
+	 */
+	public static CompletableFuture<Void> writeAsync(final VFile file, final byte[] data) {
+		Path path = getLocalPath(file);
+		if (path != null) {
+			final CompletableFuture<Void> future = new CompletableFuture<Void>();
+			try {
+				((JFile) file).refresh();
+				AsynchronousFileChannel channel = open(path,
+						EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+				write(channel, ByteBuffer.wrap(data), 0, future);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+			return future;
+		}
+		return supply(new Callable<Void>() {
+			public Void call() throws IOException {
+				OutputStream out = file.getOutputStream();
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	private static Path getLocalPath(VFile file) {
+		if (file instanceof JFile) {
+			try {
+				return file.toPath();
+			} catch (Exception ex) {
+				// not a file system path
+			}
+		}
+		return null;
+	}
+
+	private static AsynchronousFileChannel open(Path path, EnumSet<? extends OpenOption> options) throws IOException {
+		Executor e = getExecutor();
+		if (e instanceof VfsExecutor) {
+			// channel I/O is counted by VfsExecutor
+			e = ((VfsExecutor) e).asExecutorService();
+		}
+		if (e instanceof ExecutorService) {
+			return AsynchronousFileChannel.open(path, options, (ExecutorService) e);
+		}
+		return AsynchronousFileChannel.open(path, options.toArray(new OpenOption[options.size()]));
+	}
+
+	private static CompletableFuture<byte[]> readAll(Path path) {
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		try {
+			final AsynchronousFileChannel channel = open(path, EnumSet.of(StandardOpenOption.READ));
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				channel.close();
+				throw new IOException("file too large: " + path);
+			}
+			final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			CompletableFuture<Integer> read = new CompletableFuture<Integer>();
+			read(channel, buffer, 0, 0, read);
+			read.whenComplete(new BiConsumer<Integer, Throwable>() {
+				public void accept(Integer count, Throwable t) {
+					if (t != null) {
+						future.completeExceptionally(t);
+					} else if (buffer.hasRemaining()) {
+						// file was truncated while reading
+						future.complete(Arrays.copyOf(buffer.array(), buffer.position()));
+					} else {
+						future.complete(buffer.array());
+					}
+				}
+			});
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+		}
+		return future;
+	}
+
+	/**
+	 * Read until dst is full or end of file, then close channel and complete
+	 * future with count of read bytes (or -1).
+	 */
+	private static void read(final AsynchronousFileChannel channel, final ByteBuffer dst, final long position, final int count,
+			final CompletableFuture<Integer> future) {
+		if (!dst.hasRemaining()) {
+			finish(channel, future, count);
+			return;
+		}
+		channel.read(dst, position, null, new CompletionHandler<Integer, Void>() {
+			public void completed(Integer read, Void attachment) {
+				if (read < 0) {
+					finish(channel, future, count == 0 ? -1 : count);
+				} else {
+					read(channel, dst, position + read, count + read, future);
+				}
+			}
+
+			public void failed(Throwable t, Void attachment) {
+				close(channel);
+				future.completeExceptionally(t);
+			}
+		});
+	}
+
+	private static void write(final AsynchronousFileChannel channel, final ByteBuffer src, final long position,
+			final CompletableFuture<Void> future) {
+		if (!src.hasRemaining()) {
+			finish(channel, future, null);
+			return;
+		}
+		channel.write(src, position, null, new CompletionHandler<Integer, Void>() {
+			public void completed(Integer written, Void attachment) {
+				write(channel, src, position + written, future);
+			}
+
+			public void failed(Throwable t, Void attachment) {
+				close(channel);
+				future.completeExceptionally(t);
+			}
+		});
+	}
+
+	private static <T> void finish(AsynchronousFileChannel channel, CompletableFuture<T> future, T value) {
+		try {
+			channel.close();
+			future.complete(value);
+		} catch (IOException ex) {
+			future.completeExceptionally(ex);
+		}
+	}
+
+	private static void close(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		byte[] b = new byte[8192];
+		int n = 0;
+		int read;
+		while ((read = in.read(b, n, b.length - n)) >= 0) {
+			n += read;
+			if (n == b.length) {
+				b = Arrays.copyOf(b, b.length * 2);
+			}
+		}
+		return Arrays.copyOf(b, n);
+	}
+}
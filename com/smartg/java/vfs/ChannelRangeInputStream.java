@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * InputStream over a byte range of a FileChannel. Uses positional reads, so
+ * several streams may share one channel.
+ *
+ * @author Andrey Kuznetsov
+ */
+class ChannelRangeInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final boolean closeChannel;
+	private final long end;
+	private long pos;
+	private long mark;
+
+	private byte[] single;
+
+	ChannelRangeInputStream(FileChannel channel, long start, long length, boolean closeChannel) {
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+		this.pos = start;
+		this.mark = start;
+		this.end = start + length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (single == null) {
+			single = new byte[1];
+		}
+		int read = read(single, 0, 1);
+		if (read <= 0) {
+			return -1;
+		}
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		long remaining = end - pos;
+		if (remaining <= 0) {
+			return -1;
+		}
+		int count = (int) Math.min(len, remaining);
+		int read = channel.read(ByteBuffer.wrap(b, off, count), pos);
+		if (read < 0) {
+			return -1;
+		}
+		pos += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		long count = Math.min(n, end - pos);
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, end - pos);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = pos;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		pos = mark;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closeChannel) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Compact table of archive entries. Every node (entry or implied directory)
+ * is a row in set of primitive arrays. Full paths are stored once, as UTF-8
+ * bytes in shared pool; implied directories reuse prefix of their first
+ * child path. Node 0 is the root of archive.
+ * 
+ * Nodes are linked to their parent and, through first child / next sibling,
+ * to their children. Open-addressing hash table over full paths allows to
+ * find any node with one probe sequence.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class EntryTable {
+
+	static final int ROOT = 0;
+	static final int NONE = -1;
+
+	static final byte FLAG_DIRECTORY = 1;
+
+	/**
+	 * marks time which is stored as MS-DOS date and time, converted to
+	 * milliseconds only when requested
+	 */
+	static final long DOS_TIME = 1L << 62;
+
+	private byte[] pool = new byte[1024];
+	private int poolSize;
+
+	private int count;
+
+	/** path of node is pool[pathStart, pathEnd) */
+	private int[] pathStart;
+	private int[] pathEnd;
+	private int[] parent;
+	private int[] firstChild;
+	private int[] nextSibling;
+	private int[] lastChild;
+
+	/** index of entry in archive (e.g. in central directory), NONE for implied directories */
+	private int[] index;
+	private byte[] flags;
+	private short[] method;
+	private int[] crc;
+	private long[] size;
+	private long[] compressedSize;
+	private long[] offset;
+	/** modification time, see getTime() */
+	private long[] time;
+
+	private int entryCount;
+
+	private int[] slots;
+	private int[] hashes;
+
+	EntryTable(int expectedEntries) {
+		int capacity = Math.max(16, expectedEntries + expectedEntries / 4 + 1);
+		pathStart = new int[capacity];
+		pathEnd = new int[capacity];
+		parent = new int[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		lastChild = new int[capacity];
+		index = new int[capacity];
+		flags = new byte[capacity];
+		method = new short[capacity];
+		crc = new int[capacity];
+		size = new long[capacity];
+		compressedSize = new long[capacity];
+		offset = new long[capacity];
+		time = new long[capacity];
+		hashes = new int[capacity];
+		allocateSlots(capacity * 2);
+
+		int root = newNode(0, 0, NONE, 0);
+		flags[root] = FLAG_DIRECTORY;
+	}
+
+	/**
+	 * Add entry to table.
+	 * 
+	 * @param name
+	 *            array with UTF-8 encoded entry name
+	 * @param off
+	 *            start of name in array
+	 * @param len
+	 *            length of name
+	 * @param entryIndex
+	 *            index of entry in archive
+	 * @param time
+	 *            modification time in milliseconds, DOS time marked with
+	 *            DOS_TIME or -1 if unknown
+	 * @return node of entry
+	 */
+	int add(byte[] name, int off, int len, int entryIndex, int method, long crc, long compressedSize, long size,
+			long offset, long time) {
+		boolean directory = false;
+		while (len > 0 && name[off] == '/') {
+			off++;
+			len--;
+		}
+		while (len > 0 && name[off + len - 1] == '/') {
+			len--;
+			directory = true;
+		}
+		if (len == 0) {
+			return NONE;
+		}
+		int start = poolSize;
+		ensurePool(len);
+		System.arraycopy(name, off, pool, start, len);
+
+		int before = count;
+		int node = findOrCreate(start, start + len);
+		if (count != before) {
+			// new nodes use bytes we just copied
+			poolSize += len;
+		}
+
+		if (this.index[node] == NONE) {
+			entryCount++;
+		}
+		this.index[node] = entryIndex;
+		this.method[node] = (short) method;
+		this.crc[node] = (int) crc;
+		this.compressedSize[node] = compressedSize;
+		this.size[node] = size;
+		this.offset[node] = offset;
+		this.time[node] = time;
+		if (directory) {
+			this.flags[node] |= FLAG_DIRECTORY;
+		}
+		return node;
+	}
+
+	int add(String name, int entryIndex, int method, long crc, long compressedSize, long size, long offset,
+			long time) {
+		byte[] b = name.getBytes(StandardCharsets.UTF_8);
+		return add(b, 0, b.length, entryIndex, method, crc, compressedSize, size, offset, time);
+	}
+
+	private int findOrCreate(int start, int end) {
+		int h = hash(pool, start, end);
+		int node = find(h, pool, start, end);
+		if (node != NONE) {
+			return node;
+		}
+		int slash = end - 1;
+		while (slash > start && pool[slash] != '/') {
+			slash--;
+		}
+		int p;
+		if (slash > start) {
+			p = findOrCreate(start, slash);
+		} else {
+			p = ROOT;
+		}
+		node = newNode(start, end, p, h);
+		flags[p] |= FLAG_DIRECTORY;
+		return node;
+	}
+
+	private int newNode(int start, int end, int p, int h) {
+		if (count == pathStart.length) {
+			grow();
+		}
+		int node = count++;
+		pathStart[node] = start;
+		pathEnd[node] = end;
+		parent[node] = p;
+		firstChild[node] = NONE;
+		nextSibling[node] = NONE;
+		lastChild[node] = NONE;
+		index[node] = NONE;
+		size[node] = -1;
+		compressedSize[node] = -1;
+		offset[node] = -1;
+		time[node] = -1;
+		hashes[node] = h;
+		if (p != NONE) {
+			if (lastChild[p] == NONE) {
+				firstChild[p] = node;
+			} else {
+				nextSibling[lastChild[p]] = node;
+			}
+			lastChild[p] = node;
+			insert(node);
+		}
+		return node;
+	}
+
+	private void ensurePool(int len) {
+		if (poolSize + len > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + len));
+		}
+	}
+
+	private void grow() {
+		int capacity = pathStart.length * 2;
+		pathStart = Arrays.copyOf(pathStart, capacity);
+		pathEnd = Arrays.copyOf(pathEnd, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		nextSibling = Arrays.copyOf(nextSibling, capacity);
+		lastChild = Arrays.copyOf(lastChild, capacity);
+		index = Arrays.copyOf(index, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		method = Arrays.copyOf(method, capacity);
+		crc = Arrays.copyOf(crc, capacity);
+		size = Arrays.copyOf(size, capacity);
+		compressedSize = Arrays.copyOf(compressedSize, capacity);
+		offset = Arrays.copyOf(offset, capacity);
+		time = Arrays.copyOf(time, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+	}
+
+	/**
+	 * Release memory which is only needed while table is built.
+	 */
+	void trim() {
+		pool = Arrays.copyOf(pool, poolSize);
+		lastChild = null;
+		pathStart = Arrays.copyOf(pathStart, count);
+		pathEnd = Arrays.copyOf(pathEnd, count);
+		parent = Arrays.copyOf(parent, count);
+		firstChild = Arrays.copyOf(firstChild, count);
+		nextSibling = Arrays.copyOf(nextSibling, count);
+		index = Arrays.copyOf(index, count);
+		flags = Arrays.copyOf(flags, count);
+		method = Arrays.copyOf(method, count);
+		crc = Arrays.copyOf(crc, count);
+		size = Arrays.copyOf(size, count);
+		compressedSize = Arrays.copyOf(compressedSize, count);
+		offset = Arrays.copyOf(offset, count);
+		time = Arrays.copyOf(time, count);
+		hashes = Arrays.copyOf(hashes, count);
+	}
+
+	// ----------------------- hash table ----------------------------
+
+	private void allocateSlots(int min) {
+		int capacity = 16;
+		while (capacity < min) {
+			capacity <<= 1;
+		}
+		slots = new int[capacity];
+		Arrays.fill(slots, NONE);
+	}
+
+	private static int hash(byte[] b, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + b[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private void insert(int node) {
+		if (count * 2 > slots.length) {
+			allocateSlots(slots.length * 2);
+			for (int i = 1; i < count; i++) {
+				if (i != node) {
+					put(i);
+				}
+			}
+		}
+		put(node);
+	}
+
+	private void put(int node) {
+		int mask = slots.length - 1;
+		int i = hashes[node] & mask;
+		while (slots[i] != NONE) {
+			i = (i + 1) & mask;
+		}
+		slots[i] = node;
+	}
+
+	private int find(int h, byte[] b, int start, int end) {
+		int mask = slots.length - 1;
+		int i = h & mask;
+		int node;
+		int len = end - start;
+		while ((node = slots[i]) != NONE) {
+			if (hashes[node] == h && pathEnd[node] - pathStart[node] == len) {
+				if (equals(pool, pathStart[node], b, start, len)) {
+					return node;
+				}
+			}
+			i = (i + 1) & mask;
+		}
+		return NONE;
+	}
+
+	private static boolean equals(byte[] a, int aOff, byte[] b, int bOff, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[aOff + i] != b[bOff + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find node by its full path (e.g. "a/b/c/d.class").
+	 * 
+	 * @return node or NONE
+	 */
+	int find(String path) {
+		byte[] b = path.getBytes(StandardCharsets.UTF_8);
+		int start = 0;
+		int end = b.length;
+		while (start < end && b[start] == '/') {
+			start++;
+		}
+		while (end > start && b[end - 1] == '/') {
+			end--;
+		}
+		if (start == end) {
+			return ROOT;
+		}
+		return find(hash(b, start, end), b, start, end);
+	}
+
+	/**
+	 * Find child of node by name.
+	 * 
+	 * @return node or NONE
+	 */
+	int child(int node, String name) {
+		if (node == ROOT) {
+			return find(name);
+		}
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		int start = pathStart[node];
+		int len = pathEnd[node] - start;
+		byte[] b = new byte[len + 1 + n.length];
+		System.arraycopy(pool, start, b, 0, len);
+		b[len] = '/';
+		System.arraycopy(n, 0, b, len + 1, n.length);
+		return find(hash(b, 0, b.length), b, 0, b.length);
+	}
+
+	// ----------------------- accessors ----------------------------
+
+	/**
+	 * @return count of nodes (including root and implied directories)
+	 */
+	int getNodeCount() {
+		return count;
+	}
+
+	/**
+	 * @return count of entries (without root and implied directories)
+	 */
+	int getEntryCount() {
+		return entryCount;
+	}
+
+	String getPath(int node) {
+		return new String(pool, pathStart[node], pathEnd[node] - pathStart[node], StandardCharsets.UTF_8);
+	}
+
+	String getName(int node) {
+		int start = pathStart[node];
+		int end = pathEnd[node];
+		int i = end - 1;
+		while (i >= start && pool[i] != '/') {
+			i--;
+		}
+		return new String(pool, i + 1, end - i - 1, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write UTF-8 encoded path of node.
+	 * 
+	 * @return length of path
+	 */
+	int getPathBytes(int node, byte[] dst) {
+		int len = pathEnd[node] - pathStart[node];
+		System.arraycopy(pool, pathStart[node], dst, 0, len);
+		return len;
+	}
+
+	int getPathLength(int node) {
+		return pathEnd[node] - pathStart[node];
+	}
+
+	int getParent(int node) {
+		return parent[node];
+	}
+
+	int getFirstChild(int node) {
+		return firstChild[node];
+	}
+
+	int getNextSibling(int node) {
+		return nextSibling[node];
+	}
+
+	int getChildCount(int node) {
+		int n = 0;
+		for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+			n++;
+		}
+		return n;
+	}
+
+	boolean isDirectory(int node) {
+		return (flags[node] & FLAG_DIRECTORY) != 0;
+	}
+
+	/**
+	 * @return true if node is not an entry of archive, but directory implied
+	 *         by paths of entries
+	 */
+	boolean isImplied(int node) {
+		return index[node] == NONE;
+	}
+
+	int getIndex(int node) {
+		return index[node];
+	}
+
+	int getMethod(int node) {
+		return method[node];
+	}
+
+	/**
+	 * @return CRC-32 of entry or -1 for implied directories
+	 */
+	long getCrc(int node) {
+		if (index[node] == NONE) {
+			return -1;
+		}
+		return crc[node] & 0xFFFFFFFFL;
+	}
+
+	long getSize(int node) {
+		return size[node];
+	}
+
+	long getCompressedSize(int node) {
+		return compressedSize[node];
+	}
+
+	long getOffset(int node) {
+		return offset[node];
+	}
+
+	/**
+	 * @return modification time in milliseconds or -1 if unknown
+	 */
+	long getTime(int node) {
+		long t = time[node];
+		if (t != -1 && (t & DOS_TIME) != 0) {
+			return dosToJavaTime((int) t);
+		}
+		return t;
+	}
+
+	/**
+	 * @return time as it is stored in table (see add())
+	 */
+	long getRawTime(int node) {
+		return time[node];
+	}
+
+	static int javaToDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) {
+			// 1980-01-01 00:00
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	static long dosToJavaTime(int dtime) {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set(((dtime >> 25) & 0x7f) + 1980, ((dtime >> 21) & 0x0f) - 1, (dtime >> 16) & 0x1f, (dtime >> 11) & 0x1f,
+				(dtime >> 5) & 0x3f, (dtime << 1) & 0x3e);
+		return c.getTimeInMillis();
+	}
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Bounded pool of logged in FTPClients of one server. FTPClient is not thread
+ * safe and can run only one command (or transfer) at once, so FtpFile
+ * borrows client for every operation (for transfers - until stream is
+ * closed) and returns it to the pool.
+ * 
+ * Idle clients are kept alive with NOOP and closed after idle timeout.
+ * Client which was idle for some time is checked (NOOP) before it is
+ * borrowed.
+ * 
+ * Pool created with FtpClientPool(FTPClient) holds only supplied client, it
+ * just serializes access to it. Broken client is reconnected if pool knows
+ * user and password (see FtpClientPool(FTPClient, String, String)).
+ * FtpFile(FTPClient, String) creates such pool for its tree, files of tree
+ * reach it through their parents. Trees which should share one client (and
+ * listing cache) should be created with the same pool.
+ * 
+ * Pool also holds FtpListingCache of server.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class FtpClientPool {
+
+	private final String host;
+	private final int port;
+	private final String user;
+	private final String password;
+	private final int maxSize;
+	/** true if pool holds only supplied client */
+	private final boolean single;
+
+	private final FtpListingCache listingCache = new FtpListingCache();
+
+	private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+	private int size;
+	private boolean closed;
+
+	private long borrowTimeout = 60000;
+	private long validateAfter = 5000;
+	private long keepAliveInterval = 30000;
+	private long idleTimeout = 300000;
+	private int transferRetries = 3;
+
+	private ScheduledExecutorService keepAlive;
+
+	/**
+	 * true if server supports MLSD/MLST, null if not known yet
+	 */
+	private volatile Boolean mlst;
+
+	// metrics
+	private long created;
+	private long destroyed;
+	private long borrowed;
+	private long waits;
+	private long waitTime;
+	private long failedChecks;
+
+	/**
+	 * Create pool which connects to server on demand.
+	 * 
+	 * @param maxSize
+	 *            max count of connections
+	 */
+	public FtpClientPool(String host, int port, String user, String password, int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize: " + maxSize);
+		}
+		this.host = host;
+		this.port = port;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.single = false;
+	}
+
+	/**
+	 * Create pool of one already connected client. Client can't be
+	 * reconnected if connection is lost.
+	 */
+	public FtpClientPool(FTPClient client) {
+		this(client, null, null);
+	}
+
+	/**
+	 * Create pool of one already connected client. Client is reconnected
+	 * and logged in again with user and password if connection is lost.
+	 */
+	public FtpClientPool(FTPClient client, String user, String password) {
+		this.host = client.isConnected() ? client.getRemoteAddress().getHostAddress() : null;
+		this.port = client.isConnected() ? client.getRemotePort() : 0;
+		this.user = user;
+		this.password = password;
+		this.maxSize = 1;
+		this.single = true;
+		this.size = 1;
+		this.created = 1;
+		this.idle.add(new Idle(client));
+	}
+
+	/**
+	 * @return directory listing cache of server
+	 */
+	public FtpListingCache getListingCache() {
+		return listingCache;
+	}
+
+	/**
+	 * @return true if server advertises MLST (and MLSD) in FEAT. FEAT is
+	 *         sent only once.
+	 */
+	boolean isMlstSupported(FTPClient client) throws IOException {
+		Boolean b = mlst;
+		if (b == null) {
+			b = client.hasFeature("MLST");
+			mlst = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Use (true) or don't use (false) MLSD/MLST for listings, null detects
+	 * support with FEAT.
+	 */
+	public void setMlst(Boolean supported) {
+		mlst = supported;
+	}
+
+	/**
+	 * Connect and login new client. Subclasses may override configure() to
+	 * set additional options.
+	 */
+	protected FTPClient createClient() throws IOException {
+		FTPClient client = new FTPClient();
+		login(client);
+		return client;
+	}
+
+	private void login(FTPClient client) throws IOException {
+		client.connect(host, port);
+		try {
+			if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+				throw new IOException("FTP server refused connection: " + client.getReplyString());
+			}
+			if (!client.login(user, password)) {
+				throw new IOException("FTP login failed: " + client.getReplyString());
+			}
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			configure(client);
+		} catch (IOException ex) {
+			disconnect(client);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Connect and login the only client of pool again.
+	 */
+	private void reconnect(FTPClient client) throws IOException {
+		if (host == null || user == null) {
+			throw new IOException("FTP connection is lost and can't be reconnected");
+		}
+		disconnect(client);
+		login(client);
+		synchronized (this) {
+			destroyed++;
+			created++;
+		}
+	}
+
+	/**
+	 * Called for every new client after login.
+	 */
+	protected void configure(FTPClient client) throws IOException {
+	}
+
+	private boolean canCreate() {
+		return !single;
+	}
+
+	/**
+	 * Borrow client. Client must be returned with release() (or
+	 * invalidate(), if connection is broken).
+	 * 
+	 * @throws IOException
+	 *             if there is no free client in borrowTimeout or new client
+	 *             can't connect
+	 */
+	public FTPClient borrow() throws IOException {
+		while (true) {
+			Idle entry = null;
+			synchronized (this) {
+				long start = System.currentTimeMillis();
+				boolean waited = false;
+				while (!closed && idle.isEmpty() && (size >= maxSize || !canCreate())) {
+					long remaining = borrowTimeout - (System.currentTimeMillis() - start);
+					if (remaining <= 0) {
+						throw new IOException("no free FTP connection (pool size " + maxSize + ")");
+					}
+					waited = true;
+					try {
+						wait(remaining);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IOException(ex);
+					}
+				}
+				if (waited) {
+					waits++;
+					waitTime += System.currentTimeMillis() - start;
+				}
+				if (closed) {
+					throw new IOException("pool is closed");
+				}
+				entry = idle.pollLast();
+				if (entry == null) {
+					size++;
+				}
+				borrowed++;
+			}
+			if (entry == null) {
+				try {
+					FTPClient client = createClient();
+					synchronized (this) {
+						created++;
+					}
+					startKeepAlive();
+					return client;
+				} catch (IOException ex) {
+					synchronized (this) {
+						size--;
+						borrowed--;
+						notifyAll();
+					}
+					throw ex;
+				}
+			}
+			if ((entry.client.isConnected() && System.currentTimeMillis() - entry.time < validateAfter)
+					|| isHealthy(entry.client)) {
+				return entry.client;
+			}
+			synchronized (this) {
+				failedChecks++;
+			}
+			if (!canCreate()) {
+				// the only client of pool can't be replaced
+				try {
+					reconnect(entry.client);
+					return entry.client;
+				} catch (IOException ex) {
+					synchronized (this) {
+						borrowed--;
+					}
+					release(entry.client);
+					throw ex;
+				}
+			}
+			synchronized (this) {
+				borrowed--;
+			}
+			invalidate(entry.client);
+		}
+	}
+
+	/**
+	 * Return client to the pool. Disconnected client is removed from pool.
+	 */
+	public void release(FTPClient client) {
+		if (client == null) {
+			return;
+		}
+		if (!client.isConnected() && canCreate()) {
+			invalidate(client);
+			return;
+		}
+		boolean close;
+		synchronized (this) {
+			close = closed && canCreate();
+			if (close) {
+				size--;
+				destroyed++;
+			} else {
+				idle.addLast(new Idle(client));
+			}
+			notifyAll();
+		}
+		if (close) {
+			disconnect(client);
+		}
+	}
+
+	/**
+	 * Remove broken client from pool and disconnect it.
+	 */
+	public void invalidate(FTPClient client) {
+		if (!canCreate()) {
+			// keep the only client
+			release(client);
+			return;
+		}
+		synchronized (this) {
+			size--;
+			destroyed++;
+			notifyAll();
+		}
+		disconnect(client);
+	}
+
+	private boolean isHealthy(FTPClient client) {
+		try {
+			return client.isConnected() && client.sendNoOp();
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private static void disconnect(FTPClient client) {
+		try {
+			if (client.isConnected()) {
+				try {
+					client.logout();
+				} finally {
+					client.disconnect();
+				}
+			}
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+
+	private synchronized void startKeepAlive() {
+		if (keepAlive != null || closed || keepAliveInterval <= 0) {
+			return;
+		}
+		keepAlive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ftp-keepalive-" + host);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		keepAlive.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				keepAlive();
+			}
+		}, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send NOOP to clients which are idle for keepAliveInterval, close
+	 * clients which are idle longer than idleTimeout.
+	 */
+	void keepAlive() {
+		ArrayDeque<Idle> check = new ArrayDeque<Idle>();
+		ArrayDeque<Idle> expired = new ArrayDeque<Idle>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<Idle> it = idle.iterator();
+			while (it.hasNext()) {
+				Idle entry = it.next();
+				if (now - entry.time >= idleTimeout) {
+					it.remove();
+					expired.add(entry);
+					size--;
+					destroyed++;
+				} else if (now - entry.time >= keepAliveInterval) {
+					it.remove();
+					check.add(entry);
+				}
+			}
+			if (!expired.isEmpty()) {
+				notifyAll();
+			}
+		}
+		for (Idle entry : expired) {
+			disconnect(entry.client);
+		}
+		for (Idle entry : check) {
+			if (isHealthy(entry.client)) {
+				synchronized (this) {
+					if (!closed) {
+						// keeps idle time, so client expires after idleTimeout
+						idle.addFirst(entry);
+						notifyAll();
+						continue;
+					}
+				}
+			} else {
+				synchronized (this) {
+					failedChecks++;
+				}
+			}
+			synchronized (this) {
+				size--;
+				destroyed++;
+				notifyAll();
+			}
+			disconnect(entry.client);
+		}
+	}
+
+	/**
+	 * Close idle clients. Borrowed clients are closed when released.
+	 */
+	public void close() {
+		ArrayDeque<Idle> list;
+		synchronized (this) {
+			closed = true;
+			if (keepAlive != null) {
+				keepAlive.shutdownNow();
+				keepAlive = null;
+			}
+			list = new ArrayDeque<Idle>(idle);
+			idle.clear();
+			size -= list.size();
+			destroyed += list.size();
+			notifyAll();
+		}
+		for (Idle entry : list) {
+			disconnect(entry.client);
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return count of open connections (idle and borrowed)
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	public synchronized int getActiveCount() {
+		return size - idle.size();
+	}
+
+	public synchronized long getCreatedCount() {
+		return created;
+	}
+
+	public synchronized long getDestroyedCount() {
+		return destroyed;
+	}
+
+	public synchronized long getBorrowCount() {
+		return borrowed;
+	}
+
+	/**
+	 * @return count of borrow() calls which waited for free client
+	 */
+	public synchronized long getWaitCount() {
+		return waits;
+	}
+
+	/**
+	 * @return total time (in milliseconds) borrow() waited for free client
+	 */
+	public synchronized long getWaitTime() {
+		return waitTime;
+	}
+
+	public synchronized long getFailedCheckCount() {
+		return failedChecks;
+	}
+
+	public synchronized void setBorrowTimeout(long millis) {
+		this.borrowTimeout = millis;
+	}
+
+	/**
+	 * Client idle for more than millis is checked with NOOP before borrow.
+	 */
+	public synchronized void setValidateAfter(long millis) {
+		this.validateAfter = millis;
+	}
+
+	/**
+	 * Set interval of NOOP for idle clients (0 disables keep alive). Must be
+	 * set before first client is created.
+	 */
+	public synchronized void setKeepAliveInterval(long millis) {
+		this.keepAliveInterval = millis;
+	}
+
+	public synchronized void setIdleTimeout(long millis) {
+		this.idleTimeout = millis;
+	}
+
+	/**
+	 * Set how many times broken download is resumed (with new connection and
+	 * REST) before IOException is thrown. Count is reset when resumed
+	 * transfer makes progress.
+	 */
+	public synchronized void setTransferRetries(int retries) {
+		this.transferRetries = retries;
+	}
+
+	public synchronized int getTransferRetries() {
+		return transferRetries;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ftp://" + host + ":" + port + " size=" + size + "/" + maxSize + " idle=" + idle.size() + " created=" + created
+				+ " destroyed=" + destroyed + " borrowed=" + borrowed + " waits=" + waits + " waitTime=" + waitTime
+				+ " failedChecks=" + failedChecks;
+	}
+
+	static class Idle {
+		final FTPClient client;
+		final long time;
+
+		Idle(FTPClient client) {
+			this.client = client;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
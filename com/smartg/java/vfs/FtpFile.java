@@ -31,9 +31,14 @@
 package com.smartg.java.vfs;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Enumeration;
@@ -42,34 +47,63 @@ import javax.swing.Icon;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 
 import com.smartg.java.util.ArrayIterator;
 
 /**
  * VFile implementation for FTP (File Transfer Protocol).
  * 
+ * All FtpFiles of a tree share FtpClientPool. Every operation borrows a
+ * client from the pool (streams hold it until they are closed), so several
+ * threads can list and download at the same time.
+ * 
+ * Directory listings are shared by all FtpFiles of server (see
+ * FtpListingCache), operations which change directory invalidate its
+ * listing.
+ * 
+ * Downloads are resumed at the broken offset with REST if connection fails
+ * (see FtpClientPool.setTransferRetries()). Large files can also be
+ * downloaded over several connections with FtpSegmentedDownload.
+ * 
+ * If server supports MLSD/MLST (RFC 3659), directories are listed with MLSD
+ * (machine readable, exact size and UTC time) and single files are read
+ * with MLST instead of listing of parent directory. Otherwise LIST is used.
+ * 
  * @author andrey
  * 
  */
-public class FtpFile implements VFile {
+public class FtpFile implements VFile, RangeFile {
 
-    FTPClient ftpClient;
+    final FtpClientPool pool;
     FTPFile ftpFile;
 
-    FTPFile[] children;
     FtpFile parent;
     
     String name;
 
     public static VFile get(FTPClient ftpClient, String path) {
-	return new FtpRoot(ftpClient, path).resolve(path);
+	return get(new FtpClientPool(ftpClient), path);
+    }
+
+    public static VFile get(FtpClientPool pool, String path) {
+	return new FtpRoot(pool, path).resolve(path);
     }
 
     /**
+     * Files of tree share pool of ftpClient through their parents.
+     * 
      * @param path  
      */
     public FtpFile(FTPClient ftpClient, String path) {
-	this.ftpClient = ftpClient;
+	this(new FtpClientPool(ftpClient), path);
+    }
+
+    /**
+     * @param path  
+     */
+    public FtpFile(FtpClientPool pool, String path) {
+	this.pool = pool;
     }
 
     public FtpFile(FtpFile parent, String name) {
@@ -77,24 +111,46 @@ public class FtpFile implements VFile {
 	    throw new NullPointerException();
 	}
 	this.parent = parent;
-	this.ftpClient = parent.ftpClient;
+	this.pool = parent.pool;
 	this.ftpFile = parent.getFtpFile(name);
 	this.name = name;
     }
 
+    /**
+     * Child of parent from its listing.
+     */
+    FtpFile(FtpFile parent, FTPFile ftpFile) {
+	this.parent = parent;
+	this.pool = parent.pool;
+	this.ftpFile = ftpFile;
+	this.name = ftpFile.getName();
+    }
+
     public void create() throws IOException {
 	if (exists()) {
 	    return;
 	}
 	byte[] buf = new byte[0];
 	ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-	ftpClient.storeFile(getAbsolutePath(), bais);
+	FTPClient client = pool.borrow();
+	try {
+	    client.storeFile(getAbsolutePath(), bais);
+	} finally {
+	    pool.release(client);
+	    invalidateParent();
+	}
     }
 
     public boolean delete() {
 	try {
 	    if (!isDirectory()) {
-		return ftpClient.deleteFile(getAbsolutePath());
+		FTPClient client = pool.borrow();
+		try {
+		    return client.deleteFile(getAbsolutePath());
+		} finally {
+		    pool.release(client);
+		    invalidateParent();
+		}
 	    }
 	} catch (IOException e) {
 	    e.printStackTrace();
@@ -119,12 +175,7 @@ public class FtpFile implements VFile {
     public VFile get(String s) {
 	if (isDirectory()) {
 //	    s = s.toUpperCase();
-	    VFile vFile = new FtpFile(this, s);
-
-	    if (s.endsWith(".ZIP") || s.endsWith(".JAR")) {
-		return new VZipFile(vFile);
-	    }
-	    return vFile;
+	    return ArchiveTypes.wrap(new FtpFile(this, s));
 	}
 	return null;
     }
@@ -152,7 +203,333 @@ public class FtpFile implements VFile {
     }
 
     public InputStream getInputStream() throws IOException {
-	return ftpClient.retrieveFileStream(getAbsolutePath());
+	return openRange(0, -1);
+    }
+
+    /**
+     * Download with several connections, see FtpSegmentedDownload.
+     */
+    public InputStream getInputStream(int sessions) throws IOException {
+	return new FtpSegmentedDownload(this, sessions).openStream();
+    }
+
+    /**
+     * Download part of file. Transfer starts at offset (REST command), so
+     * data before offset is not transferred. If server doesn't support REST,
+     * file is downloaded from start and skipped to offset. Broken transfer is
+     * resumed at current position.
+     */
+    public InputStream openRange(long offset, long length) throws IOException {
+	return new ResumableInputStream(this, offset, length);
+    }
+
+    /**
+     * Start download at offset.
+     */
+    TransferInputStream retrieve(long offset) throws IOException {
+	String path = getAbsolutePath();
+	FTPClient client = pool.borrow();
+	InputStream in = null;
+	try {
+	    if (offset > 0) {
+		client.setRestartOffset(offset);
+		in = client.retrieveFileStream(path);
+		client.setRestartOffset(0);
+		if (in != null) {
+		    return new TransferInputStream(in, client, pool);
+		}
+	    }
+	    in = client.retrieveFileStream(path);
+	} catch (IOException ex) {
+	    // connection is broken
+	    pool.invalidate(client);
+	    throw ex;
+	} catch (RuntimeException ex) {
+	    pool.release(client);
+	    throw ex;
+	}
+	if (in == null) {
+	    String reply = client.getReplyString();
+	    boolean permanent = FTPReply.isNegativePermanent(client.getReplyCode());
+	    pool.release(client);
+	    if (permanent) {
+		throw new FileNotFoundException(path + ": " + reply);
+	    }
+	    throw new IOException(reply);
+	}
+	TransferInputStream tin = new TransferInputStream(in, client, pool);
+	try {
+	    TarIndex.skipFully(tin, offset);
+	} catch (EOFException ex) {
+	    // offset is beyond end of file
+	} catch (IOException ex) {
+	    tin.close();
+	    throw ex;
+	}
+	return tin;
+    }
+
+    /**
+     * @return size of file, with SIZE command if listing has no size
+     */
+    long getSize() throws IOException {
+	if (ftpFile != null && ftpFile.getSize() >= 0) {
+	    return ftpFile.getSize();
+	}
+	FTPClient client = pool.borrow();
+	try {
+	    if (client.sendCommand("SIZE", getAbsolutePath()) == 213) {
+		return Long.parseLong(client.getReplyString().substring(4).trim());
+	    }
+	    return -1;
+	} catch (NumberFormatException ex) {
+	    return -1;
+	} finally {
+	    pool.release(client);
+	}
+    }
+
+    public int read(long offset, ByteBuffer dst) throws IOException {
+	InputStream in = openRange(offset, dst.remaining());
+	try {
+	    return VfsUtil.read(in, dst);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Data stream of transfer. Transfer is completed on end of data or on
+     * close and client is returned to the pool. Failed transfer (e.g. 426
+     * reply after data connection was closed) throws IOException at end of
+     * data, so truncated file is never taken for complete one.
+     */
+    static class TransferInputStream extends FilterInputStream {
+	private final FTPClient client;
+	private final FtpClientPool pool;
+	private boolean closed;
+	private boolean completed;
+	private boolean broken;
+
+	TransferInputStream(InputStream in, FTPClient client, FtpClientPool pool) {
+	    super(in);
+	    this.client = client;
+	    this.pool = pool;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    byte[] b = new byte[1];
+	    int read = read(b, 0, 1);
+	    return read < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    try {
+		int read = in.read(b, off, len);
+		if (read < 0 && !completed) {
+		    completed = true;
+		    if (!client.completePendingCommand()) {
+			throw new IOException("FTP transfer failed: " + client.getReplyString());
+		    }
+		}
+		return read;
+	    } catch (IOException ex) {
+		broken = true;
+		throw ex;
+	    }
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    if (broken) {
+		// connection may be unusable, don't wait for reply
+		try {
+		    super.close();
+		} catch (IOException ex) {
+		    // ignore
+		}
+		pool.invalidate(client);
+		return;
+	    }
+	    try {
+		super.close();
+		if (!completed) {
+		    // false if transfer was aborted before end, it is expected for ranges
+		    client.completePendingCommand();
+		}
+	    } finally {
+		pool.release(client);
+	    }
+	}
+    }
+
+    /**
+     * Download of range which survives broken connections: on IOException
+     * transfer is restarted with new connection at current position.
+     */
+    static class ResumableInputStream extends InputStream {
+	private final FtpFile file;
+	private long position;
+	private final long end;
+	private TransferInputStream in;
+	private int failures;
+	private boolean closed;
+
+	/**
+	 * @param length
+	 *            count of bytes to read or -1 for rest of file
+	 */
+	ResumableInputStream(FtpFile file, long offset, long length) throws IOException {
+	    this.file = file;
+	    this.position = offset;
+	    this.end = length < 0 ? -1 : offset + length;
+	    // fail early if file can't be downloaded
+	    open();
+	}
+
+	private void open() throws IOException {
+	    while (true) {
+		try {
+		    in = file.retrieve(position);
+		    return;
+		} catch (IOException ex) {
+		    failed(ex);
+		}
+	    }
+	}
+
+	/**
+	 * Throw ex if all retries are used.
+	 */
+	private void failed(IOException ex) throws IOException {
+	    if (in != null) {
+		in.close();
+		in = null;
+	    }
+	    if (ex instanceof FileNotFoundException || ++failures > file.pool.getTransferRetries()) {
+		throw ex;
+	    }
+	}
+
+	@Override
+	public int read() throws IOException {
+	    byte[] b = new byte[1];
+	    int read = read(b, 0, 1);
+	    return read < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (closed) {
+		throw new IOException("Stream closed");
+	    }
+	    if (len == 0) {
+		return 0;
+	    }
+	    if (end >= 0) {
+		if (position >= end) {
+		    return -1;
+		}
+		len = (int) Math.min(len, end - position);
+	    }
+	    while (true) {
+		if (in == null) {
+		    open();
+		}
+		try {
+		    int read = in.read(b, off, len);
+		    if (read > 0) {
+			position += read;
+			failures = 0;
+		    }
+		    return read;
+		} catch (IOException ex) {
+		    failed(ex);
+		}
+	    }
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+	    if (end < 0) {
+		// size is unknown
+		return super.skip(n);
+	    }
+	    n = Math.min(n, end - position);
+	    if (n <= 0) {
+		return 0;
+	    }
+	    // restart transfer at new position instead of reading skipped data
+	    if (in != null) {
+		in.close();
+		in = null;
+	    }
+	    position += n;
+	    return n;
+	}
+
+	/**
+	 * @return offset in file of next byte
+	 */
+	long getPosition() {
+	    return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    if (in != null) {
+		in.close();
+		in = null;
+	    }
+	}
+    }
+
+    /**
+     * Data stream of upload. Transfer is completed on close, client is
+     * returned to the pool and listing of parent directory is invalidated.
+     */
+    static class TransferOutputStream extends FilterOutputStream {
+	private final FTPClient client;
+	private final FtpFile file;
+	private boolean closed;
+
+	TransferOutputStream(OutputStream out, FTPClient client, FtpFile file) {
+	    super(out);
+	    this.client = client;
+	    this.file = file;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    try {
+		super.close();
+		if (!client.completePendingCommand()) {
+		    throw new IOException("FTP transfer failed: " + client.getReplyString());
+		}
+	    } finally {
+		file.pool.release(client);
+		file.invalidateParent();
+	    }
+	}
     }
 
     public String getName() {
@@ -164,14 +541,24 @@ public class FtpFile implements VFile {
 
     public OutputStream getOutputStream() throws IOException {
 	String absolutePath = getAbsolutePath();
-	OutputStream storeFileStream = ftpClient.storeFileStream(absolutePath);
-	if(storeFileStream == null) {
-	    byte [] data = new byte[4];
-	    ByteArrayInputStream in = new ByteArrayInputStream(data);
-	    ftpClient.storeFile(absolutePath, in);
-	    storeFileStream = ftpClient.storeFileStream(absolutePath);
+	FTPClient client = pool.borrow();
+	try {
+	    OutputStream storeFileStream = client.storeFileStream(absolutePath);
+	    if(storeFileStream == null) {
+		byte [] data = new byte[4];
+		ByteArrayInputStream in = new ByteArrayInputStream(data);
+		client.storeFile(absolutePath, in);
+		storeFileStream = client.storeFileStream(absolutePath);
+	    }
+	    if (storeFileStream == null) {
+		throw new IOException(client.getReplyString());
+	    }
+	    invalidateParent();
+	    return new TransferOutputStream(storeFileStream, client, this);
+	} catch (IOException ex) {
+	    pool.release(client);
+	    throw ex;
 	}
-	return storeFileStream;
     }
 
     public String getParent() {
@@ -184,11 +571,9 @@ public class FtpFile implements VFile {
 
     public int getPos() {
 	if (parent != null) {
-	    String[] list = parent.list();
-	    for (int i = 0; i < list.length; i++) {
-		if (list[i].equals(getName())) {
-		    return i;
-		}
+	    int pos = parent.getListing().indexOf(getName());
+	    if (pos >= 0) {
+		return pos;
 	    }
 	}
 	return 0;
@@ -206,7 +591,7 @@ public class FtpFile implements VFile {
     }
 
     public long lastModified() {
-	if(ftpFile != null) {
+	if(ftpFile != null && ftpFile.getTimestamp() != null) {
 	    return ftpFile.getTimestamp().getTimeInMillis();
 	}
 	return 0L;
@@ -235,28 +620,133 @@ public class FtpFile implements VFile {
     }
 
     private FTPFile[] getChildren() {
-	if (children == null) {
+	return getListing().files;
+    }
+
+    /**
+     * Listing is not kept by FtpFile, so TTL and invalidations (also by other
+     * FtpFiles of the same directory) of FtpListingCache apply.
+     */
+    private FtpListing getListing() {
+	String path = getAbsolutePath();
+	FtpListingCache cache = pool.getListingCache();
+	FtpListing listing = cache.getListing(path);
+	if (listing == null) {
 	    try {
-		children = ftpClient.listFiles(getAbsolutePath());
+		FTPClient client = pool.borrow();
+		try {
+		    listing = new FtpListing(listFiles(client, path));
+		} finally {
+		    pool.release(client);
+		}
+		cache.put(path, listing);
 	    } catch (IOException e) {
 		e.printStackTrace();
-		children = new FTPFile[0];
+		listing = FtpListing.EMPTY;
 	    }
 	}
-	return children;
+	return listing;
     }
 
-    private FTPFile getFtpFile(String name) {
-	FTPFile[] children = getChildren();
-	if (children != null) {
-	    for (int i = 0; i < children.length; i++) {
-		String name2 = children[i].getName();
-		if (name2.equals(name)) {
-		    return children[i];
+    /**
+     * List directory with MLSD if server supports it, otherwise with LIST.
+     */
+    private FTPFile[] listFiles(FTPClient client, String path) throws IOException {
+	FTPFile[] files = null;
+	if (pool.isMlstSupported(client)) {
+	    files = client.mlistDir(path);
+	    int reply = client.getReplyCode();
+	    if (!FTPReply.isPositiveCompletion(reply)) {
+		if (reply >= 500 && reply <= 504) {
+		    // advertised, but not implemented
+		    pool.setMlst(Boolean.FALSE);
 		}
+		files = null;
 	    }
 	}
-	return null;
+	if (files == null) {
+	    files = client.listFiles(path);
+	}
+	return clean(files);
+    }
+
+    /**
+     * Remove unparsable entries, "." and ".." from listing.
+     */
+    private static FTPFile[] clean(FTPFile[] files) {
+	int count = 0;
+	for (int i = 0; i < files.length; i++) {
+	    FTPFile f = files[i];
+	    if (f != null && !".".equals(f.getName()) && !"..".equals(f.getName())) {
+		files[count++] = f;
+	    }
+	}
+	if (count < files.length) {
+	    FTPFile[] res = new FTPFile[count];
+	    System.arraycopy(files, 0, res, 0, count);
+	    return res;
+	}
+	return files;
+    }
+
+    /**
+     * Get FTPFile of child with MLST.
+     * 
+     * @return FTPFile (or null if child doesn't exist), or this if server
+     *         doesn't support MLST
+     */
+    private Object statChild(String name) {
+	try {
+	    FTPClient client = pool.borrow();
+	    try {
+		if (!pool.isMlstSupported(client)) {
+		    return this;
+		}
+		FTPFile f = client.mlistFile(getAbsolutePath() + "/" + name);
+		int reply = client.getReplyCode();
+		if (reply >= 500 && reply <= 504) {
+		    pool.setMlst(Boolean.FALSE);
+		    return this;
+		}
+		if (f != null) {
+		    // MLST returns full path as name
+		    f.setName(name);
+		}
+		return f;
+	    } finally {
+		pool.release(client);
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return this;
+	}
+    }
+
+    /**
+     * Forget listing of this directory (also in FtpListingCache).
+     */
+    public void refresh() {
+	pool.getListingCache().invalidate(getAbsolutePath());
+    }
+
+    /**
+     * Forget listing of parent directory after this file was changed.
+     */
+    private void invalidateParent() {
+	if (parent != null) {
+	    parent.refresh();
+	}
+    }
+
+    private FTPFile getFtpFile(String name) {
+	if (!pool.getListingCache().contains(getAbsolutePath())) {
+	    // stat only this file instead of listing of whole directory
+	    Object f = statChild(name);
+	    if (f != this) {
+		return (FTPFile) f;
+	    }
+	}
+	return getListing().get(name);
     }
 
     public String[] list(VFilenameFilter filter) {
@@ -281,7 +771,7 @@ public class FtpFile implements VFile {
 	    FTPFile[] children = getChildren();
 	    VFile[] res = new VFile[children.length];
 	    for (int i = 0; i < res.length; i++) {
-		res[i] = new FtpFile(this, children[i].getName());
+		res[i] = new FtpFile(this, children[i]);
 	    }
 	    return res;
 	}
@@ -305,11 +795,15 @@ public class FtpFile implements VFile {
     public boolean mkdir() {
 	if (!exists()) {
 	    try {
-		String absolutePath = parent.getAbsolutePath();
-		@SuppressWarnings("unused")
-		boolean cwd = parent.ftpClient.changeWorkingDirectory(absolutePath);
-		boolean makeDirectory = parent.ftpClient.makeDirectory(name);
-		parent.children = null;
+		boolean makeDirectory;
+		FTPClient client = pool.borrow();
+		try {
+		    // absolute path, working directory of pooled client is not changed
+		    makeDirectory = client.makeDirectory(getAbsolutePath());
+		} finally {
+		    pool.release(client);
+		}
+		parent.refresh();
 		this.ftpFile = parent.getFtpFile(name);
 		return makeDirectory;
 	    } catch (IOException e) {
@@ -329,10 +823,20 @@ public class FtpFile implements VFile {
 
     public boolean rename(String name) {
 	try {
-	    boolean b = ftpClient.rename(getAbsolutePath(), getParent() + "/" + name);
+	    boolean b;
+	    FTPClient client = pool.borrow();
+	    try {
+		b = client.rename(getAbsolutePath(), getParent() + "/" + name);
+	    } finally {
+		pool.release(client);
+	    }
 	    if (b) {
-		parent.children = null;
-		ftpFile = getFtpFile(name);
+		if (isDirectory()) {
+		    pool.getListingCache().invalidateTree(getAbsolutePath());
+		}
+		parent.refresh();
+		this.name = name;
+		ftpFile = parent.getFtpFile(name);
 	    }
 	    return b;
 	} catch (IOException e) {
@@ -346,7 +850,14 @@ public class FtpFile implements VFile {
 	    try {
 		if (!rf) {
 		    if (getChildren().length == 0) {
-			return ftpClient.deleteFile(getAbsolutePath());
+			FTPClient client = pool.borrow();
+			try {
+			    return client.deleteFile(getAbsolutePath());
+			} finally {
+			    pool.release(client);
+			    pool.getListingCache().invalidate(getAbsolutePath());
+			    invalidateParent();
+			}
 		    }
 		    return false;
 		}
@@ -376,7 +887,13 @@ public class FtpFile implements VFile {
     }
 
     public void writeFile(InputStream in) throws IOException {
-	ftpClient.storeFile(getAbsolutePath(), in);
+	FTPClient client = pool.borrow();
+	try {
+	    client.storeFile(getAbsolutePath(), in);
+	} finally {
+	    pool.release(client);
+	    invalidateParent();
+	}
     }
 
     public Enumeration<VFile> files() {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.util.HashMap;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Listing of FTP directory with name to index map, so children are found
+ * in constant time. Listing is immutable and shared by all FtpFiles of
+ * directory through FtpListingCache, so map is built only once.
+ * 
+ * @author Andrey Kuznetsov
+ */
+class FtpListing {
+
+	static final FtpListing EMPTY = new FtpListing(new FTPFile[0]);
+
+	final FTPFile[] files;
+	private final HashMap<String, Integer> index;
+
+	FtpListing(FTPFile[] files) {
+		this.files = files;
+		this.index = new HashMap<String, Integer>(Math.max(16, (int) (files.length / 0.75f) + 1));
+		for (int i = 0; i < files.length; i++) {
+			// keep first entry if name is listed twice
+			String name = files[i].getName();
+			if (!index.containsKey(name)) {
+				index.put(name, i);
+			}
+		}
+	}
+
+	/**
+	 * @return index of name in listing or -1
+	 */
+	int indexOf(String name) {
+		Integer i = index.get(name);
+		return i != null ? i : -1;
+	}
+
+	/**
+	 * @return FTPFile with given name or null
+	 */
+	FTPFile get(String name) {
+		Integer i = index.get(name);
+		return i != null ? files[i] : null;
+	}
+
+	int size() {
+		return files.length;
+	}
+}
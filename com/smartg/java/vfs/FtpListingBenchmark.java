@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.util.Calendar;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Measures child lookup in large FTP directory: listFiles(), get(name) and
+ * getPos() of every child on synthetic listing (no server is needed).
+ * Linear scan of listing, as it was done before FtpListing, is estimated
+ * for comparison.
+ * 
+ * Usage: FtpListingBenchmark [entries] [runs]
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class FtpListingBenchmark {
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		FTPFile[] files = createListing(entries);
+		FtpClientPool pool = new FtpClientPool("localhost", 21, "anonymous", "", 1);
+		FTPFile dirEntry = new FTPFile();
+		dirEntry.setName("bench");
+		dirEntry.setType(FTPFile.DIRECTORY_TYPE);
+		FtpFile dir = new FtpFile(new FtpFile(pool, "/"), dirEntry);
+		pool.getListingCache().setTtl(Long.MAX_VALUE);
+
+		for (int r = 0; r < runs; r++) {
+			pool.getListingCache().put(dir.getAbsolutePath(), new FtpListing(files));
+
+			long t = System.nanoTime();
+			VFile[] children = dir.listFiles();
+			long list = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < children.length; i++) {
+				sum += children[i].getPos();
+			}
+			long pos = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (int i = 0; i < files.length; i++) {
+				sum += dir.get(files[i].getName()).length();
+			}
+			long get = System.nanoTime() - t;
+
+			// quadratic, so only sample of names is looked up and time is scaled
+			int step = Math.max(1, files.length / 1000);
+			t = System.nanoTime();
+			for (int i = 0; i < files.length; i += step) {
+				sum += linearIndexOf(files, files[i].getName());
+			}
+			long linear = (System.nanoTime() - t) * step;
+
+			System.out.println("run " + (r + 1) + ": " + entries + " entries, listFiles " + list / 1000000 + " ms, getPos "
+					+ pos / 1000000 + " ms, get " + get / 1000000 + " ms, linear scan ~" + linear / 1000000 + " ms (" + sum
+					+ ")");
+		}
+	}
+
+	static FTPFile[] createListing(int entries) {
+		FTPFile[] files = new FTPFile[entries];
+		Calendar time = Calendar.getInstance();
+		for (int i = 0; i < entries; i++) {
+			FTPFile f = new FTPFile();
+			f.setName("file" + i + ".dat");
+			f.setType(FTPFile.FILE_TYPE);
+			f.setSize(i);
+			f.setTimestamp(time);
+			files[i] = f;
+		}
+		return files;
+	}
+
+	/**
+	 * Lookup of child as FtpFile did it without FtpListing.
+	 */
+	static int linearIndexOf(FTPFile[] files, String name) {
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Directory listings of one FTP server by absolute path. Listings expire
+ * after TTL, least recently used listings are evicted if there are more than
+ * maxEntries. FtpFile invalidates listing of directory when it changes
+ * something in it.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class FtpListingCache {
+
+	private long ttl = 30000;
+	private int maxEntries = 1000;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() > maxEntries) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * @return listing or null if there is no valid listing of path
+	 */
+	public FTPFile[] get(String path) {
+		FtpListing listing = getListing(path);
+		return listing != null ? listing.files : null;
+	}
+
+	public void put(String path, FTPFile[] files) {
+		put(path, new FtpListing(files));
+	}
+
+	synchronized FtpListing getListing(String path) {
+		Entry e = map.get(path);
+		if (e != null) {
+			if (System.currentTimeMillis() - e.time < ttl) {
+				hits++;
+				return e.listing;
+			}
+			map.remove(path);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return true if there is valid listing of path (doesn't count as hit
+	 *         or miss)
+	 */
+	synchronized boolean contains(String path) {
+		Entry e = map.get(path);
+		return e != null && System.currentTimeMillis() - e.time < ttl;
+	}
+
+	synchronized void put(String path, FtpListing listing) {
+		if (ttl > 0 && maxEntries > 0) {
+			map.put(path, new Entry(listing));
+		}
+	}
+
+	/**
+	 * Remove listing of directory.
+	 */
+	public synchronized void invalidate(String path) {
+		map.remove(path);
+	}
+
+	/**
+	 * Remove listing of directory and all its subdirectories.
+	 */
+	public synchronized void invalidateTree(String path) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Iterator<String> it = map.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.equals(path) || key.startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Set time to live of listings in milliseconds (0 disables cache).
+	 */
+	public synchronized void setTtl(long millis) {
+		this.ttl = millis;
+		if (millis <= 0) {
+			map.clear();
+		}
+	}
+
+	public synchronized long getTtl() {
+		return ttl;
+	}
+
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		Iterator<String> it = map.keySet().iterator();
+		while (map.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entries=" + map.size() + "/" + maxEntries + " ttl=" + ttl + " hits=" + hits + " misses=" + misses + " evictions="
+				+ evictions;
+	}
+
+	static class Entry {
+		final FtpListing listing;
+		final long time;
+
+		Entry(FtpListing listing) {
+			this.listing = listing;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
@@ -54,9 +54,23 @@ class FtpRoot extends FtpFile {
     boolean exists;
 
     public FtpRoot(FTPClient ftpClient, String path) {
-	super(ftpClient, path);
+	this(new FtpClientPool(ftpClient), path);
+    }
+
+    public FtpRoot(FtpClientPool pool, String path) {
+	super(pool, path);
 	try {
-	    exists = ftpClient.changeWorkingDirectory(path);
+	    FTPClient client = pool.borrow();
+	    try {
+		// client is shared, so its working directory is restored
+		String cwd = client.printWorkingDirectory();
+		exists = client.changeWorkingDirectory(path);
+		if (cwd != null) {
+		    client.changeWorkingDirectory(cwd);
+		}
+	    } finally {
+		pool.release(client);
+	    }
 	} catch (IOException ex) {
 	    ex.printStackTrace();
 	}
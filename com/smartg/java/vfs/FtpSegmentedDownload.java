@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one FTP file over several connections. File is split into
+ * segments, every segment is downloaded by its own transfer (REST + RETR,
+ * transfer is aborted when segment ends). On high latency links throughput
+ * of one connection is limited by TCP window, so several connections are
+ * faster.
+ * 
+ * Segments are either reassembled in order into InputStream (openStream())
+ * or written at their positions to local file (writeTo()). Broken segment
+ * transfers are resumed like FtpFile downloads.
+ * 
+ * Connections are taken from FtpClientPool of file, so pool should allow at
+ * least sessions connections.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class FtpSegmentedDownload {
+
+	private final FtpFile file;
+	private final int sessions;
+	private int segmentSize = 4 << 20;
+
+	/**
+	 * @param sessions
+	 *            count of connections used at same time
+	 */
+	public FtpSegmentedDownload(FtpFile file, int sessions) {
+		this.file = file;
+		this.sessions = Math.max(1, sessions);
+	}
+
+	/**
+	 * Set size of segments which are reassembled in openStream() (4 MB by
+	 * default). Up to 2 * sessions segments are held in memory.
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = Math.max(64 << 10, segmentSize);
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Open stream which reads whole file. If size of file is unknown or file
+	 * is small, file is downloaded with one connection.
+	 */
+	public InputStream openStream() throws IOException {
+		long length = file.getSize();
+		if (sessions == 1 || length <= segmentSize) {
+			return file.openRange(0, -1);
+		}
+		return new SegmentInputStream(length);
+	}
+
+	/**
+	 * Download file to target. Every connection writes its part of file at
+	 * its position, so nothing is buffered in memory.
+	 */
+	public void writeTo(JFile target) throws IOException {
+		final long length = file.getSize();
+		if (sessions == 1 || length <= segmentSize) {
+			if (!VfsUtil.copyFile(file, target)) {
+				throw new IOException("download failed: " + file.getAbsolutePath());
+			}
+			return;
+		}
+		final FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// one part per connection, larger parts need less of REST/ABOR
+		final long part = (length + sessions - 1) / sessions;
+		final AtomicLong next = new AtomicLong();
+		VfsExecutor executor = VfsExecutor.createPool("ftp-download", sessions);
+		try {
+			channel.truncate(length);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < sessions; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						long offset;
+						while ((offset = next.getAndAdd(part)) < length) {
+							writeSegment(channel, offset, Math.min(part, length - offset));
+						}
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<Void> f : futures) {
+					get(f);
+				}
+			} catch (IOException ex) {
+				for (Future<Void> f : futures) {
+					f.cancel(true);
+				}
+				throw ex;
+			}
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+			target.refresh();
+		}
+	}
+
+	void writeSegment(FileChannel channel, long offset, long length) throws IOException {
+		InputStream in = file.openRange(offset, length);
+		try {
+			byte[] buf = new byte[64 << 10];
+			long position = offset;
+			long end = offset + length;
+			int read;
+			while (position < end && (read = in.read(buf, 0, (int) Math.min(buf.length, end - position))) > 0) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+				while (bb.hasRemaining()) {
+					position += channel.write(bb, position);
+				}
+			}
+			if (position < end) {
+				throw new IOException("unexpected end of file at " + position + ": " + file.getAbsolutePath());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read segment into memory.
+	 */
+	byte[] readSegment(long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		InputStream in = file.openRange(offset, length);
+		try {
+			int count = 0;
+			int read;
+			while (count < length && (read = in.read(data, count, length - count)) > 0) {
+				count += read;
+			}
+			if (count < length) {
+				throw new IOException("unexpected end of file at " + (offset + count) + ": " + file.getAbsolutePath());
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Reads segments in order while next segments are downloaded.
+	 */
+	class SegmentInputStream extends InputStream {
+		private final long length;
+		private final VfsExecutor executor = VfsExecutor.createPool("ftp-download", sessions);
+		private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		private long submitted;
+
+		private byte[] data;
+		private int pos;
+		private boolean closed;
+
+		SegmentInputStream(long length) {
+			this.length = length;
+			while (pending.size() < 2 * sessions && submitted < length) {
+				submitNext();
+			}
+		}
+
+		private void submitNext() {
+			final long offset = submitted;
+			final int size = (int) Math.min(segmentSize, length - offset);
+			submitted += size;
+			pending.add(executor.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return readSegment(offset, size);
+				}
+			}));
+		}
+
+		/**
+		 * @return false if there are no more segments
+		 */
+		private boolean nextSegment() throws IOException {
+			Future<byte[]> f = pending.poll();
+			if (f == null) {
+				return false;
+			}
+			data = get(f);
+			pos = 0;
+			if (submitted < length) {
+				submitNext();
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return read < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (data == null || pos == data.length) {
+				if (!nextSegment()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return data != null ? data.length - pos : 0;
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			pending.clear();
+			executor.shutdownNow();
+			data = null;
+		}
+	}
+}
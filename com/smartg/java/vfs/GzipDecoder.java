@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Pure Java gzip (deflate) decoder. Unlike java.util.zip.Inflater it knows
+ * the exact bit position of every deflate block, and it can start decoding
+ * in the middle of a stream, at a block boundary, if the last 32 KB of
+ * output (the window) are known. This is what GzipIndex needs to create
+ * and use access points.
+ * 
+ * Concatenated gzip members are decoded as one stream.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class GzipDecoder extends InputStream {
+
+	static final int WINDOW = 32768;
+	private static final int MASK = WINDOW - 1;
+
+	/**
+	 * Called at start of every deflate block (see GzipIndex.Builder).
+	 */
+	interface BlockListener {
+		void block(GzipDecoder decoder) throws IOException;
+	}
+
+	private static final int MEMBER = 0;
+	private static final int BLOCK = 1;
+	private static final int STORED = 2;
+	private static final int CODES = 3;
+	private static final int END = 4;
+
+	private static final short[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+			59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final byte[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4,
+			4, 5, 5, 5, 5, 0 };
+	private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+			769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final byte[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10,
+			10, 11, 11, 12, 12, 13, 13 };
+	private static final byte[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1,
+			15 };
+
+	private static final Huffman FIXED_LENGTH;
+	private static final Huffman FIXED_DIST;
+
+	static {
+		byte[] lengths = new byte[288];
+		for (int i = 0; i < 144; i++) {
+			lengths[i] = 8;
+		}
+		for (int i = 144; i < 256; i++) {
+			lengths[i] = 9;
+		}
+		for (int i = 256; i < 280; i++) {
+			lengths[i] = 7;
+		}
+		for (int i = 280; i < 288; i++) {
+			lengths[i] = 8;
+		}
+		FIXED_LENGTH = new Huffman(288);
+		FIXED_DIST = new Huffman(30);
+		try {
+			FIXED_LENGTH.build(lengths, 0, 288);
+			byte[] dist = new byte[30];
+			for (int i = 0; i < 30; i++) {
+				dist[i] = 5;
+			}
+			FIXED_DIST.build(dist, 0, 30);
+		} catch (ZipException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] inBuf = new byte[InflaterPool.BUFFER_SIZE];
+	private int inPos;
+	private int inLimit;
+	/** position of first byte of in */
+	private final long base;
+	/** count of bytes moved from in to bitBuf */
+	private long bytesIn;
+
+	private long bitBuf;
+	private int bitCount;
+
+	private final byte[] window = new byte[WINDOW];
+	private int wpos;
+	/** count of valid bytes in window (up to WINDOW) */
+	private int have;
+
+	private long out;
+
+	private int state;
+	private boolean lastBlock;
+	private int storedRemaining;
+	private int copyLength;
+	private int copyDist;
+	private Huffman lengthCodes;
+	private Huffman distCodes;
+	private final Huffman dynamicLength = new Huffman(288);
+	private final Huffman dynamicDist = new Huffman(30);
+	private final byte[] lengths = new byte[288 + 32];
+
+	private boolean members;
+	private final CRC32 crc = new CRC32();
+	private boolean checkCrc;
+	private long memberOut;
+
+	private BlockListener listener;
+	private byte[] single;
+
+	/**
+	 * Decode gzip stream from start.
+	 */
+	GzipDecoder(InputStream in) {
+		this.in = in;
+		this.base = 0;
+		this.state = MEMBER;
+	}
+
+	/**
+	 * Start decoding at block boundary inside of deflate stream.
+	 * 
+	 * @param in
+	 *            compressed stream, positioned at byte (bitPosition / 8)
+	 * @param bitPosition
+	 *            position of block in compressed stream (in bits)
+	 * @param window
+	 *            last bytes of output before block (up to 32 KB)
+	 * @param out
+	 *            position of block in uncompressed stream
+	 */
+	GzipDecoder(InputStream in, long bitPosition, byte[] window, long out) throws IOException {
+		this.in = in;
+		this.base = bitPosition >>> 3;
+		this.out = out;
+		this.members = true;
+		int bits = (int) (bitPosition & 7);
+		if (bits != 0) {
+			need(bits);
+			drop(bits);
+		}
+		int n = Math.min(window.length, WINDOW);
+		System.arraycopy(window, window.length - n, this.window, 0, n);
+		this.wpos = n & MASK;
+		this.have = n;
+		// crc of member is unknown
+		this.checkCrc = false;
+		this.state = BLOCK;
+	}
+
+	void setBlockListener(BlockListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return position of decoder in compressed stream (in bits)
+	 */
+	long getBitPosition() {
+		return (base + bytesIn) * 8 - bitCount;
+	}
+
+	/**
+	 * @return count of bytes decoded so far (position in uncompressed
+	 *         stream)
+	 */
+	long getPosition() {
+		return out;
+	}
+
+	/**
+	 * @return copy of last (up to 32 KB) bytes of output
+	 */
+	byte[] getWindow() {
+		byte[] b = new byte[have];
+		int start = (wpos - have) & MASK;
+		int first = Math.min(have, WINDOW - start);
+		System.arraycopy(window, start, b, 0, first);
+		System.arraycopy(window, 0, b, first, have - first);
+		return b;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (single == null) {
+			single = new byte[1];
+		}
+		int read = read(single, 0, 1);
+		if (read <= 0) {
+			return -1;
+		}
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		int produced;
+		while (n < len) {
+			switch (state) {
+			case MEMBER:
+				if (!readMemberHeader()) {
+					state = END;
+				}
+				break;
+			case BLOCK:
+				if (lastBlock) {
+					readTrailer();
+					state = MEMBER;
+					break;
+				}
+				if (listener != null) {
+					listener.block(this);
+				}
+				readBlockHeader();
+				break;
+			case STORED:
+				produced = stored(b, off + n, len - n);
+				crc.update(b, off + n, produced);
+				n += produced;
+				break;
+			case CODES:
+				produced = codes(b, off + n, len - n);
+				crc.update(b, off + n, produced);
+				n += produced;
+				break;
+			default:
+				return n == 0 ? -1 : n;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		byte[] buf = InflaterPool.getDefault().borrowBuffer();
+		try {
+			long remaining = n;
+			while (remaining > 0) {
+				int read = read(buf, 0, (int) Math.min(buf.length, remaining));
+				if (read < 0) {
+					break;
+				}
+				remaining -= read;
+			}
+			return n - remaining;
+		} finally {
+			InflaterPool.getDefault().returnBuffer(buf);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean readMemberHeader() throws IOException {
+		int id1 = readByte();
+		if (id1 < 0) {
+			if (!members) {
+				throw new EOFException("empty gzip stream");
+			}
+			return false;
+		}
+		int id2 = readByte();
+		if (id1 != 0x1f || id2 != 0x8b) {
+			if (!members) {
+				throw new ZipException("not in gzip format");
+			}
+			// trailing garbage is ignored, like gzip does
+			return false;
+		}
+		if (readByteOrFail() != 8) {
+			throw new ZipException("unsupported compression method");
+		}
+		int flags = readByteOrFail();
+		// mtime, xfl, os
+		for (int i = 0; i < 6; i++) {
+			readByteOrFail();
+		}
+		if ((flags & 4) != 0) {
+			int xlen = readByteOrFail() | (readByteOrFail() << 8);
+			for (int i = 0; i < xlen; i++) {
+				readByteOrFail();
+			}
+		}
+		if ((flags & 8) != 0) {
+			while (readByteOrFail() != 0) {
+			}
+		}
+		if ((flags & 16) != 0) {
+			while (readByteOrFail() != 0) {
+			}
+		}
+		if ((flags & 2) != 0) {
+			readByteOrFail();
+			readByteOrFail();
+		}
+		members = true;
+		crc.reset();
+		checkCrc = true;
+		memberOut = out;
+		have = 0;
+		lastBlock = false;
+		state = BLOCK;
+		return true;
+	}
+
+	private void readTrailer() throws IOException {
+		drop(bitCount & 7);
+		long expectedCrc = readInt();
+		long size = readInt();
+		if (checkCrc) {
+			if (expectedCrc != crc.getValue()) {
+				throw new ZipException("corrupt gzip trailer (crc)");
+			}
+			if (size != ((out - memberOut) & 0xFFFFFFFFL)) {
+				throw new ZipException("corrupt gzip trailer (size)");
+			}
+		}
+	}
+
+	private long readInt() throws IOException {
+		return (readByteOrFail() | (readByteOrFail() << 8) | (readByteOrFail() << 16) | ((long) readByteOrFail() << 24));
+	}
+
+	private void readBlockHeader() throws IOException {
+		need(3);
+		lastBlock = (bitBuf & 1) != 0;
+		int type = (int) (bitBuf >>> 1) & 3;
+		drop(3);
+		switch (type) {
+		case 0:
+			drop(bitCount & 7);
+			need(32);
+			int len = (int) (bitBuf & 0xFFFF);
+			int nlen = (int) ((bitBuf >>> 16) & 0xFFFF);
+			drop(32);
+			if (len != (~nlen & 0xFFFF)) {
+				throw new ZipException("invalid stored block length");
+			}
+			storedRemaining = len;
+			state = STORED;
+			break;
+		case 1:
+			lengthCodes = FIXED_LENGTH;
+			distCodes = FIXED_DIST;
+			state = CODES;
+			break;
+		case 2:
+			readDynamicTables();
+			lengthCodes = dynamicLength;
+			distCodes = dynamicDist;
+			state = CODES;
+			break;
+		default:
+			throw new ZipException("invalid block type");
+		}
+	}
+
+	private void readDynamicTables() throws IOException {
+		need(14);
+		int nlen = (int) (bitBuf & 0x1F) + 257;
+		int ndist = (int) ((bitBuf >>> 5) & 0x1F) + 1;
+		int ncode = (int) ((bitBuf >>> 10) & 0xF) + 4;
+		drop(14);
+		if (nlen > 286 || ndist > 30) {
+			throw new ZipException("invalid code lengths");
+		}
+		byte[] codeLengths = new byte[19];
+		for (int i = 0; i < ncode; i++) {
+			need(3);
+			codeLengths[CODE_LENGTH_ORDER[i]] = (byte) (bitBuf & 7);
+			drop(3);
+		}
+		Huffman lencode = new Huffman(19);
+		lencode.build(codeLengths, 0, 19);
+
+		int index = 0;
+		while (index < nlen + ndist) {
+			int symbol = decode(lencode);
+			if (symbol < 16) {
+				lengths[index++] = (byte) symbol;
+				continue;
+			}
+			int len = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (index == 0) {
+					throw new ZipException("invalid code lengths");
+				}
+				len = lengths[index - 1];
+				need(2);
+				repeat = 3 + (int) (bitBuf & 3);
+				drop(2);
+			} else if (symbol == 17) {
+				need(3);
+				repeat = 3 + (int) (bitBuf & 7);
+				drop(3);
+			} else {
+				need(7);
+				repeat = 11 + (int) (bitBuf & 0x7F);
+				drop(7);
+			}
+			if (index + repeat > nlen + ndist) {
+				throw new ZipException("invalid code lengths");
+			}
+			while (repeat-- > 0) {
+				lengths[index++] = (byte) len;
+			}
+		}
+		if (lengths[256] == 0) {
+			throw new ZipException("missing end of block code");
+		}
+		dynamicLength.build(lengths, 0, nlen);
+		dynamicDist.build(lengths, nlen, ndist);
+	}
+
+	private int stored(byte[] b, int off, int len) throws IOException {
+		int n = Math.min(len, storedRemaining);
+		for (int i = 0; i < n; i++) {
+			int v = readByteOrFail();
+			b[off + i] = (byte) v;
+			window[wpos] = (byte) v;
+			wpos = (wpos + 1) & MASK;
+		}
+		addOutput(n);
+		storedRemaining -= n;
+		if (storedRemaining == 0) {
+			state = BLOCK;
+		}
+		return n;
+	}
+
+	private int codes(byte[] b, int off, int len) throws IOException {
+		byte[] window = this.window;
+		int wpos = this.wpos;
+		int n = 0;
+		try {
+			while (n < len) {
+				if (copyLength > 0) {
+					int count = Math.min(copyLength, len - n);
+					int src = (wpos - copyDist) & MASK;
+					for (int i = 0; i < count; i++) {
+						byte v = window[src];
+						src = (src + 1) & MASK;
+						b[off + n++] = v;
+						window[wpos] = v;
+						wpos = (wpos + 1) & MASK;
+					}
+					copyLength -= count;
+					continue;
+				}
+				int symbol = decode(lengthCodes);
+				if (symbol < 256) {
+					b[off + n++] = (byte) symbol;
+					window[wpos] = (byte) symbol;
+					wpos = (wpos + 1) & MASK;
+					continue;
+				}
+				if (symbol == 256) {
+					state = BLOCK;
+					break;
+				}
+				symbol -= 257;
+				if (symbol >= 29) {
+					throw new ZipException("invalid literal/length code");
+				}
+				int extra = LENGTH_EXTRA[symbol];
+				int length = LENGTH_BASE[symbol];
+				if (extra > 0) {
+					need(extra);
+					length += (int) (bitBuf & ((1 << extra) - 1));
+					drop(extra);
+				}
+				int dsym = decode(distCodes);
+				if (dsym >= 30) {
+					throw new ZipException("invalid distance code");
+				}
+				extra = DIST_EXTRA[dsym];
+				int dist = DIST_BASE[dsym];
+				if (extra > 0) {
+					need(extra);
+					dist += (int) (bitBuf & ((1 << extra) - 1));
+					drop(extra);
+				}
+				if (dist > have + n) {
+					throw new ZipException("invalid distance too far back");
+				}
+				copyLength = length;
+				copyDist = dist;
+			}
+		} finally {
+			this.wpos = wpos;
+			addOutput(n);
+		}
+		return n;
+	}
+
+	private void addOutput(int n) {
+		out += n;
+		have = (int) Math.min(WINDOW, have + (long) n);
+	}
+
+	private int decode(Huffman h) throws IOException {
+		if (bitCount < 15) {
+			fill();
+		}
+		int e = h.fast[(int) (bitBuf & Huffman.FAST_MASK)];
+		int len = e >>> 16;
+		if (e != 0 && len <= bitCount) {
+			drop(len);
+			return e & 0xFFFF;
+		}
+		// slow path (long code)
+		int code = 0;
+		int first = 0;
+		int index = 0;
+		for (len = 1; len <= 15; len++) {
+			if (len > bitCount) {
+				throw new EOFException("unexpected end of deflate stream");
+			}
+			code |= (int) (bitBuf >>> (len - 1)) & 1;
+			int count = h.count[len];
+			if (code - count < first) {
+				drop(len);
+				return h.symbol[index + (code - first)];
+			}
+			index += count;
+			first += count;
+			first <<= 1;
+			code <<= 1;
+		}
+		throw new ZipException("invalid Huffman code");
+	}
+
+	/**
+	 * Load as many bytes into bitBuf as possible.
+	 */
+	private void fill() throws IOException {
+		while (bitCount <= 56) {
+			if (inPos == inLimit && !refill()) {
+				return;
+			}
+			bitBuf |= (long) (inBuf[inPos++] & 0xFF) << bitCount;
+			bitCount += 8;
+			bytesIn++;
+		}
+	}
+
+	private boolean refill() throws IOException {
+		int read = in.read(inBuf, 0, inBuf.length);
+		if (read <= 0) {
+			return false;
+		}
+		inPos = 0;
+		inLimit = read;
+		return true;
+	}
+
+	private void need(int n) throws IOException {
+		if (bitCount < n) {
+			fill();
+			if (bitCount < n) {
+				throw new EOFException("unexpected end of deflate stream");
+			}
+		}
+	}
+
+	private void drop(int n) {
+		bitBuf >>>= n;
+		bitCount -= n;
+	}
+
+	/**
+	 * @return next byte (bitBuf must be byte aligned) or -1
+	 */
+	private int readByte() throws IOException {
+		if (bitCount >= 8) {
+			int b = (int) (bitBuf & 0xFF);
+			drop(8);
+			return b;
+		}
+		if (inPos == inLimit && !refill()) {
+			return -1;
+		}
+		bytesIn++;
+		return inBuf[inPos++] & 0xFF;
+	}
+
+	private int readByteOrFail() throws IOException {
+		int b = readByte();
+		if (b < 0) {
+			throw new EOFException("unexpected end of gzip stream");
+		}
+		return b;
+	}
+
+	/**
+	 * Canonical Huffman code. Codes up to FAST_BITS long are decoded with
+	 * one table lookup, longer codes bit by bit.
+	 */
+	static final class Huffman {
+		static final int FAST_BITS = 10;
+		static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+		final short[] count = new short[16];
+		final short[] symbol;
+		/** (length << 16) | symbol, indexed by next FAST_BITS bits */
+		final int[] fast = new int[1 << FAST_BITS];
+
+		Huffman(int n) {
+			symbol = new short[n];
+		}
+
+		void build(byte[] lengths, int off, int n) throws ZipException {
+			for (int i = 0; i < 16; i++) {
+				count[i] = 0;
+			}
+			for (int i = 0; i < n; i++) {
+				count[lengths[off + i]]++;
+			}
+			count[0] = 0;
+			int left = 1;
+			for (int len = 1; len < 16; len++) {
+				left <<= 1;
+				left -= count[len];
+				if (left < 0) {
+					throw new ZipException("over-subscribed Huffman code");
+				}
+			}
+			int[] offs = new int[16];
+			for (int len = 1; len < 15; len++) {
+				offs[len + 1] = offs[len] + count[len];
+			}
+			for (int i = 0; i < n; i++) {
+				int len = lengths[off + i];
+				if (len != 0) {
+					symbol[offs[len]++] = (short) i;
+				}
+			}
+
+			Arrays.fill(fast, 0);
+			int code = 0;
+			int index = 0;
+			for (int len = 1; len <= FAST_BITS; len++) {
+				for (int i = 0; i < count[len]; i++) {
+					int rev = reverse(code + i, len);
+					int e = (len << 16) | symbol[index + i];
+					for (int j = rev; j < fast.length; j += 1 << len) {
+						fast[j] = e;
+					}
+				}
+				index += count[len];
+				code = (code + count[len]) << 1;
+			}
+		}
+
+		private static int reverse(int code, int len) {
+			return Integer.reverse(code) >>> (32 - len);
+		}
+	}
+}
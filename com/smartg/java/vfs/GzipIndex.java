@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Access points of gzip file (like zran.c from zlib). Every access point
+ * holds position of deflate block in compressed and uncompressed stream and
+ * the last 32 KB of uncompressed data before block, so decoding can start
+ * there instead of at the beginning of file.
+ * 
+ * Index is created by a full scan of the file. Index of local file is
+ * stored beside the file (name + ".vgzi") and reused while length and
+ * lastModified of file do not change.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class GzipIndex {
+
+	static final String SUFFIX = ".vgzi";
+
+	private static final int MAGIC = 0x56475a49; // VGZI
+	private static final int VERSION = 1;
+
+	private static volatile long defaultSpan = 1L << 20;
+
+	/** distance between access points in uncompressed stream */
+	final long span;
+	/** uncompressed size */
+	long size;
+
+	private long[] positions = new long[16];
+	private long[] bitPositions = new long[16];
+	/** deflate compressed windows */
+	private byte[][] windows = new byte[16][];
+	private int count;
+
+	GzipIndex(long span) {
+		this.span = span;
+	}
+
+	/**
+	 * Set distance between access points (1 MB by default). Zero disables
+	 * creation of new indexes. Public API is VGzipFile.setIndexSpan().
+	 */
+	static void setDefaultSpan(long span) {
+		defaultSpan = span;
+	}
+
+	static long getDefaultSpan() {
+		return defaultSpan;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Decode whole stream and create index.
+	 */
+	static GzipIndex build(InputStream compressed, long span) throws IOException {
+		GzipDecoder decoder = new GzipDecoder(compressed);
+		GzipIndex index = new GzipIndex(span);
+		decoder.setBlockListener(index.new Builder());
+		try {
+			index.finish(decoder);
+		} finally {
+			decoder.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Read rest of stream (decoder must use Builder of this index) and set
+	 * size.
+	 */
+	void finish(GzipDecoder decoder) throws IOException {
+		byte[] buf = InflaterPool.getDefault().borrowBuffer();
+		try {
+			while (decoder.read(buf, 0, buf.length) >= 0) {
+			}
+		} finally {
+			InflaterPool.getDefault().returnBuffer(buf);
+		}
+		size = decoder.getPosition();
+	}
+
+	/**
+	 * Adds access points while decoder reads stream. Stream must be read to
+	 * the end, see finish().
+	 */
+	class Builder implements GzipDecoder.BlockListener {
+		private long last;
+
+		public void block(GzipDecoder decoder) throws IOException {
+			long pos = decoder.getPosition();
+			if (pos - last >= span) {
+				add(pos, decoder.getBitPosition(), decoder.getWindow());
+				last = pos;
+			}
+		}
+	}
+
+	private void add(long position, long bitPosition, byte[] window) {
+		append(position, bitPosition, compress(window));
+	}
+
+	private void append(long position, long bitPosition, byte[] compressedWindow) {
+		if (count == positions.length) {
+			positions = Arrays.copyOf(positions, count * 2);
+			bitPositions = Arrays.copyOf(bitPositions, count * 2);
+			windows = Arrays.copyOf(windows, count * 2);
+		}
+		positions[count] = position;
+		bitPositions[count] = bitPosition;
+		windows[count] = compressedWindow;
+		count++;
+	}
+
+	/**
+	 * @return index of last access point at or before position, or -1
+	 */
+	int find(long position) {
+		int i = Arrays.binarySearch(positions, 0, count, position);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return i;
+	}
+
+	long getPosition(int point) {
+		return positions[point];
+	}
+
+	long getBitPosition(int point) {
+		return bitPositions[point];
+	}
+
+	/**
+	 * Create decoder at access point.
+	 * 
+	 * @param compressed
+	 *            compressed stream positioned at byte getBitPosition(point) / 8
+	 */
+	GzipDecoder open(InputStream compressed, int point) throws IOException {
+		return new GzipDecoder(compressed, bitPositions[point], decompress(windows[point]), positions[point]);
+	}
+
+	private static byte[] compress(byte[] b) {
+		Deflater def = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			def.setInput(b);
+			def.finish();
+			byte[] out = new byte[4 + b.length + b.length / 1000 + 64];
+			out[0] = (byte) b.length;
+			out[1] = (byte) (b.length >>> 8);
+			out[2] = (byte) (b.length >>> 16);
+			out[3] = (byte) (b.length >>> 24);
+			int n = 4;
+			while (!def.finished()) {
+				if (n == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				n += def.deflate(out, n, out.length - n);
+			}
+			return Arrays.copyOf(out, n);
+		} finally {
+			def.end();
+		}
+	}
+
+	private static byte[] decompress(byte[] b) throws IOException {
+		int length = (b[0] & 0xFF) | (b[1] & 0xFF) << 8 | (b[2] & 0xFF) << 16 | (b[3] & 0xFF) << 24;
+		if (length < 0 || length > GzipDecoder.WINDOW) {
+			throw new IOException("invalid gzip index");
+		}
+		byte[] out = new byte[length];
+		InflaterPool pool = InflaterPool.getDefault();
+		Inflater inf = pool.borrowInflater();
+		try {
+			inf.setInput(b, 4, b.length - 4);
+			int n = 0;
+			while (n < length) {
+				int read = inf.inflate(out, n, length - n);
+				if (read == 0 && (inf.finished() || inf.needsInput())) {
+					break;
+				}
+				n += read;
+			}
+			if (n != length) {
+				throw new IOException("invalid gzip index");
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("invalid gzip index", ex);
+		} finally {
+			pool.returnInflater(inf);
+		}
+		return out;
+	}
+
+	static Path getIndexPath(Path file) {
+		return file.resolveSibling(file.getFileName().toString() + SUFFIX);
+	}
+
+	/**
+	 * Load index of file.
+	 * 
+	 * @return index or null if there is no valid index
+	 */
+	static GzipIndex load(Path file) {
+		Path path = getIndexPath(file);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			if (in.readLong() != Files.size(file) || in.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+				return null;
+			}
+			GzipIndex index = new GzipIndex(in.readLong());
+			index.size = in.readLong();
+			int count = (int) ZipIndexCache.readVarLong(in);
+			long position = 0;
+			long bitPosition = 0;
+			for (int i = 0; i < count; i++) {
+				position += ZipIndexCache.readVarLong(in);
+				bitPosition += ZipIndexCache.readVarLong(in);
+				byte[] window = new byte[(int) ZipIndexCache.readVarLong(in)];
+				in.readFully(window);
+				index.append(position, bitPosition, window);
+			}
+			return index;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Store index beside file. If directory is not writable, index is not
+	 * stored.
+	 */
+	void store(Path file) {
+		Path path = getIndexPath(file);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(Files.size(file));
+				out.writeLong(Files.getLastModifiedTime(file).toMillis());
+				out.writeLong(span);
+				out.writeLong(size);
+				ZipIndexCache.writeVarLong(out, count);
+				long position = 0;
+				long bitPosition = 0;
+				for (int i = 0; i < count; i++) {
+					ZipIndexCache.writeVarLong(out, positions[i] - position);
+					ZipIndexCache.writeVarLong(out, bitPositions[i] - bitPosition);
+					ZipIndexCache.writeVarLong(out, windows[i].length);
+					out.write(windows[i]);
+					position = positions[i];
+					bitPosition = bitPositions[i];
+				}
+			}
+			try {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+		} catch (IOException ex) {
+			// directory is not writable: index is kept in memory only
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete stored index of file.
+	 */
+	static void delete(Path file) {
+		try {
+			Files.deleteIfExists(getIndexPath(file));
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Uncompressed stream of gzip file which uses GzipIndex for seek() and
+ * skip(): decoding starts at the nearest access point instead of the
+ * beginning of file.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class GzipRangeInputStream extends InputStream {
+
+	private final VFile file;
+	private final Path path;
+	private final GzipIndex index;
+
+	private InputStream in;
+	private long pos;
+
+	private byte[] single;
+
+	/**
+	 * @param file
+	 *            gzip file
+	 * @param index
+	 *            index of file
+	 * @param position
+	 *            start position in uncompressed stream
+	 */
+	GzipRangeInputStream(VFile file, GzipIndex index, long position) throws IOException {
+		this.file = file;
+		this.index = index;
+		Path p = null;
+		if (file instanceof JFile) {
+			p = file.toPath();
+			if (p != null && !Files.isRegularFile(p)) {
+				p = null;
+			}
+		}
+		this.path = p;
+		seek(position);
+	}
+
+	/**
+	 * @return position in uncompressed stream
+	 */
+	long getPosition() {
+		return pos;
+	}
+
+	/**
+	 * Move to position in uncompressed stream. Decoding restarts at access
+	 * point if it is nearer than current position.
+	 */
+	void seek(long position) throws IOException {
+		int point = index.find(position);
+		long start = point < 0 ? 0 : index.getPosition(point);
+		if (in == null || position < pos || start > pos) {
+			close();
+			if (point < 0) {
+				in = new GZIPInputStream(openCompressed(0), VTarFile.BUFFER_SIZE);
+			} else {
+				in = index.open(openCompressed(index.getBitPosition(point) >>> 3), point);
+			}
+			pos = start;
+		}
+		TarIndex.skipFully(in, position - pos);
+		pos = position;
+	}
+
+	private InputStream openCompressed(long offset) throws IOException {
+		if (path != null) {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			return new ChannelRangeInputStream(channel, offset, channel.size() - offset, true);
+		}
+		InputStream s = file.getInputStream();
+		try {
+			TarIndex.skipFully(s, offset);
+		} catch (IOException ex) {
+			VfsUtil.close(s);
+			throw ex;
+		}
+		return s;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (single == null) {
+			single = new byte[1];
+		}
+		int read = read(single, 0, 1);
+		if (read <= 0) {
+			return -1;
+		}
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			pos += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		long target = Math.min(pos + n, index.size);
+		if (target <= pos) {
+			return 0;
+		}
+		long start = pos;
+		seek(target);
+		return target - start;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+			in = null;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of Inflaters (for raw deflate data) and read buffers. Zip entry
+ * streams borrow from pool when opened and return to pool when closed, so
+ * native zlib state and buffers are reused instead of being created for
+ * every stream.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public final class InflaterPool {
+
+	public static final int BUFFER_SIZE = 8192;
+
+	private static final InflaterPool defaultPool = new InflaterPool(32, 64);
+
+	private final ArrayDeque<Inflater> inflaters = new ArrayDeque<Inflater>();
+	private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+	private final int maxInflaters;
+	private final int maxBuffers;
+
+	private final AtomicLong inflaterHits = new AtomicLong();
+	private final AtomicLong inflaterMisses = new AtomicLong();
+	private final AtomicLong bufferHits = new AtomicLong();
+	private final AtomicLong bufferMisses = new AtomicLong();
+
+	/**
+	 * @param maxInflaters
+	 *            max count of idle Inflaters kept in pool
+	 * @param maxBuffers
+	 *            max count of idle buffers kept in pool
+	 */
+	public InflaterPool(int maxInflaters, int maxBuffers) {
+		this.maxInflaters = maxInflaters;
+		this.maxBuffers = maxBuffers;
+	}
+
+	public static InflaterPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Get Inflater for raw deflate data (nowrap). Should be returned with
+	 * returnInflater().
+	 */
+	public Inflater borrowInflater() {
+		Inflater inf;
+		synchronized (inflaters) {
+			inf = inflaters.pollFirst();
+		}
+		if (inf != null) {
+			inflaterHits.incrementAndGet();
+			return inf;
+		}
+		inflaterMisses.incrementAndGet();
+		return new Inflater(true);
+	}
+
+	public void returnInflater(Inflater inf) {
+		if (inf == null) {
+			return;
+		}
+		inf.reset();
+		synchronized (inflaters) {
+			if (inflaters.size() < maxInflaters) {
+				inflaters.addFirst(inf);
+				return;
+			}
+		}
+		inf.end();
+	}
+
+	/**
+	 * Get buffer of BUFFER_SIZE bytes. Should be returned with
+	 * returnBuffer().
+	 */
+	public byte[] borrowBuffer() {
+		byte[] b;
+		synchronized (buffers) {
+			b = buffers.pollFirst();
+		}
+		if (b != null) {
+			bufferHits.incrementAndGet();
+			return b;
+		}
+		bufferMisses.incrementAndGet();
+		return new byte[BUFFER_SIZE];
+	}
+
+	public void returnBuffer(byte[] b) {
+		if (b == null || b.length != BUFFER_SIZE) {
+			return;
+		}
+		synchronized (buffers) {
+			if (buffers.size() < maxBuffers) {
+				buffers.addFirst(b);
+			}
+		}
+	}
+
+	/**
+	 * Remove all idle Inflaters and buffers from pool.
+	 */
+	public void clear() {
+		synchronized (inflaters) {
+			for (Inflater inf : inflaters) {
+				inf.end();
+			}
+			inflaters.clear();
+		}
+		synchronized (buffers) {
+			buffers.clear();
+		}
+	}
+
+	/**
+	 * @return count of idle Inflaters in pool
+	 */
+	public int getInflaterCount() {
+		synchronized (inflaters) {
+			return inflaters.size();
+		}
+	}
+
+	/**
+	 * @return count of idle buffers in pool
+	 */
+	public int getBufferCount() {
+		synchronized (buffers) {
+			return buffers.size();
+		}
+	}
+
+	public long getInflaterHits() {
+		return inflaterHits.get();
+	}
+
+	public long getInflaterMisses() {
+		return inflaterMisses.get();
+	}
+
+	public long getBufferHits() {
+		return bufferHits.get();
+	}
+
+	public long getBufferMisses() {
+		return bufferMisses.get();
+	}
+
+	public void resetStatistics() {
+		inflaterHits.set(0);
+		inflaterMisses.set(0);
+		bufferHits.set(0);
+		bufferMisses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "InflaterPool[inflaters=" + getInflaterCount() + ", hits=" + getInflaterHits() + ", misses="
+				+ getInflaterMisses() + ", buffers=" + getBufferCount() + ", hits=" + getBufferHits() + ", misses="
+				+ getBufferMisses() + "]";
+	}
+}
@@ -35,12 +35,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.Set;
 
 import javax.swing.Icon;
 import javax.swing.filechooser.FileSystemView;
@@ -51,11 +59,40 @@ import com.smartg.java.util.EmptyEnumeration;
 /**
  * VFile wrapper for java.io.File.
  * 
+ * listFiles() reads directory with DirectoryStream and attributes (type, size,
+ * time, hidden flag) of all children in the same pass. These attributes are
+ * used until they are older than getAttributesMaxAge() or until refresh() is
+ * called, after that they are read again (with one call) on every access.
+ * JFile which was not created by listFiles() always reads fresh attributes.
+ * 
+ * In NIO mode (default if java.awt.headless is true) FileSystemView is never
+ * used: names and paths are taken from file system, there are no shell
+ * folders and no icons, so Swing is not loaded at all.
+ * 
  * @author Andrey Kuznetsov
  */
-public class JFile implements VFile {
+public class JFile implements VFile, ChannelFile, RangeFile {
+
+    private static volatile boolean nioMode = Boolean.getBoolean("java.awt.headless");
+
+    /**
+     * FileSystemView is created on first use only.
+     */
+    static final class Fsv {
+	static final FileSystemView fileSystemView = FileSystemView.getFileSystemView();
+    }
+
+    /**
+     * Enable or disable NIO mode. In NIO mode JFile doesn't use
+     * FileSystemView.
+     */
+    public static void setNioMode(boolean b) {
+	nioMode = b;
+    }
 
-    static final FileSystemView fileSystemView = FileSystemView.getFileSystemView();
+    public static boolean isNioMode() {
+	return nioMode;
+    }
 
     static enum FType {
 	UNKNOWN, FILE, DIRECTORY
@@ -65,7 +102,28 @@ public class JFile implements VFile {
     int pos;
 
     protected File f;
-    private FType type = FType.UNKNOWN;
+    private volatile FType type = FType.UNKNOWN;
+
+    private static volatile long attributesMaxAge = 5000;
+
+    /**
+     * attributes read by listFiles() of parent, null if there are none (or
+     * they are stale)
+     */
+    private volatile Stat stat;
+
+    /**
+     * Set how long (in milliseconds) attributes read with directory listing
+     * are used before they are read again. Negative value means forever (or
+     * until refresh()).
+     */
+    public static void setAttributesMaxAge(long millis) {
+	attributesMaxAge = millis;
+    }
+
+    public static long getAttributesMaxAge() {
+	return attributesMaxAge;
+    }
 
     public JFile(File f) {
 	this.f = f;
@@ -87,21 +145,64 @@ public class JFile implements VFile {
 	f = new File(parent, child);
     }
 
+    /**
+     * Forget cached attributes of this file, they are read again on next
+     * access.
+     */
+    public void refresh() {
+	stat = null;
+	type = FType.UNKNOWN;
+    }
+
+    /**
+     * Get attributes of this file. Attributes read by listFiles() of parent
+     * are returned while they are not stale, otherwise they are read.
+     * 
+     * @return attributes or null if file doesn't exist or attributes can't be
+     *         read
+     */
+    public BasicFileAttributes getAttributes() {
+	Stat s = stat();
+	return s != null ? s.attributes : null;
+    }
+
+    private Stat stat() {
+	Stat s = stat;
+	if (s != null && !s.isStale()) {
+	    return s;
+	}
+	// attributes read on demand are not kept, file could be changed by
+	// other writers
+	stat = null;
+	return Stat.read(f);
+    }
+
     public boolean isDirectory() {
 	if (type == FType.UNKNOWN) {
-	    type = FType.FILE;
+	    if (nioMode) {
+		Stat s = stat();
+		type = s != null && s.attributes.isDirectory() ? FType.DIRECTORY : FType.FILE;
+		return type == FType.DIRECTORY;
+	    }
+	    // compute in local variable, other threads should never see intermediate value
+	    FType t = FType.FILE;
 	    if (f.isDirectory()) {
-		type = FType.DIRECTORY;
+		t = FType.DIRECTORY;
 	    }
-	    FileSystemView fsv = fileSystemView;
+	    FileSystemView fsv = Fsv.fileSystemView;
 	    if (fsv.isDrive(f) || fsv.isDrive(f) || fsv.isFileSystemRoot(f) || fsv.isRoot(f) || !fsv.isFileSystem(f)) {
-		type = FType.DIRECTORY;
+		t = FType.DIRECTORY;
 	    }
+	    type = t;
 	}
 	return type == FType.DIRECTORY;
     }
 
     public boolean isHidden() {
+	Stat s = stat();
+	if (s != null) {
+	    return s.hidden;
+	}
 	return f.isHidden();
     }
 
@@ -121,9 +222,52 @@ public class JFile implements VFile {
     }
 
     public OutputStream getOutputStream() throws IOException {
+	refresh();
 	return new FileOutputStream(f);
     }
 
+    public FileChannel getReadableChannel() throws IOException {
+	return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    }
+
+    public FileChannel getSeekableChannel() throws IOException {
+	return getReadableChannel();
+    }
+
+    public int read(long offset, ByteBuffer dst) throws IOException {
+	FileChannel channel = getReadableChannel();
+	try {
+	    int count = 0;
+	    while (dst.hasRemaining()) {
+		int read = channel.read(dst, offset + count);
+		if (read < 0) {
+		    break;
+		}
+		count += read;
+	    }
+	    if (count == 0 && dst.hasRemaining()) {
+		return -1;
+	    }
+	    return count;
+	} finally {
+	    channel.close();
+	}
+    }
+
+    public InputStream openRange(long offset, long length) throws IOException {
+	FileChannel channel = getReadableChannel();
+	long remaining = Math.max(0, channel.size() - offset);
+	if (length >= 0) {
+	    remaining = Math.min(length, remaining);
+	}
+	return new ChannelRangeInputStream(channel, offset, remaining, true);
+    }
+
+    public FileChannel getWritableChannel() throws IOException {
+	refresh();
+	return FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
     public VFile getParentFile() {
 	if (f != null) {
 	    File parentFile = f.getParentFile();
@@ -137,17 +281,15 @@ public class JFile implements VFile {
 
     public VFile get(String s) {
 	if (isDirectory()) {
-	    JFile jFile = new JFile(f, s);
-	    s = s.toUpperCase();
-	    if (s.endsWith(".ZIP") || s.endsWith(".JAR")) {
-		return new VZipFile(jFile);
-	    }
-	    return jFile;
+	    return ArchiveTypes.wrap(new JFile(f, s));
 	}
 	return null;
     }
 
     public boolean exists() {
+	if (stat() != null) {
+	    return true;
+	}
 	return f.exists();
     }
 
@@ -159,7 +301,14 @@ public class JFile implements VFile {
 	if (displayName != null) {
 	    return displayName;
 	}
-	String systemDisplayName = fileSystemView.getSystemDisplayName(f);
+	if (nioMode) {
+	    String name = f.getName();
+	    if (name.isEmpty()) {
+		return getAbsolutePath();
+	    }
+	    return name;
+	}
+	String systemDisplayName = Fsv.fileSystemView.getSystemDisplayName(f);
 	if (systemDisplayName == null || systemDisplayName.isEmpty()) {
 	    return getAbsolutePath();
 	}
@@ -185,7 +334,11 @@ public class JFile implements VFile {
 	if (absolutePath != null) {
 	    return absolutePath;
 	}
-	if (fileSystemView.isDrive(f)) {
+	if (nioMode) {
+	    absolutePath = f.getAbsolutePath();
+	    return absolutePath;
+	}
+	if (Fsv.fileSystemView.isDrive(f)) {
 	    return f.getPath();
 	}
 	VFile parentFile = getParentFile();
@@ -202,6 +355,10 @@ public class JFile implements VFile {
     }
 
     public String[] list() {
+	String[] names = readNames();
+	if (names != null) {
+	    return names;
+	}
 	File[] list = fsvList();
 	String[] s0 = new String[list.length];
 	for (int i = 0; i < list.length; i++) {
@@ -212,9 +369,13 @@ public class JFile implements VFile {
 
     private File[] fsvList() {
 	File[] list = new File[0];
+	if (nioMode) {
+	    File[] files = f.listFiles();
+	    return files != null ? files : list;
+	}
 	try {
 	    // System.out.println(f);
-	    list = fileSystemView.getFiles(f, false);
+	    list = Fsv.fileSystemView.getFiles(f, false);
 	} catch (Throwable ex) {
 	    // ignore
 	}
@@ -222,8 +383,71 @@ public class JFile implements VFile {
     }
 
     public VFile[] listFiles() {
-	File[] list = fsvList();
-	return createFiles(list);
+	return listFiles((VFilenameFilter) null);
+    }
+
+    /**
+     * @return true if directory can be read with DirectoryStream (and not
+     *         only with FileSystemView, like virtual folders of Windows shell)
+     */
+    private boolean isStreamable() {
+	if (nioMode) {
+	    // not a directory: DirectoryStream fails and list is empty anyway
+	    return true;
+	}
+	return Fsv.fileSystemView.isFileSystem(f) && f.isDirectory();
+    }
+
+    /**
+     * @return names of children or null if directory can't be read with
+     *         DirectoryStream
+     */
+    private String[] readNames() {
+	if (!isStreamable()) {
+	    return null;
+	}
+	ArrayList<String> v = new ArrayList<String>();
+	try (DirectoryStream<Path> ds = Files.newDirectoryStream(f.toPath())) {
+	    for (Path p : ds) {
+		v.add(p.getFileName().toString());
+	    }
+	} catch (IOException | DirectoryIteratorException | InvalidPathException ex) {
+	    return null;
+	}
+	return v.toArray(new String[v.size()]);
+    }
+
+    /**
+     * Read children and their attributes in one pass.
+     * 
+     * @return children accepted by filter (may be null) or null if directory
+     *         can't be read with DirectoryStream
+     */
+    private VFile[] readFiles(VFilenameFilter filter) {
+	if (!isStreamable()) {
+	    return null;
+	}
+	ArrayList<VFile> v = new ArrayList<VFile>();
+	try (DirectoryStream<Path> ds = Files.newDirectoryStream(f.toPath())) {
+	    boolean dos = Stat.isDos(f.toPath());
+	    for (Path p : ds) {
+		String name = p.getFileName().toString();
+		if (filter != null && !filter.accept(this, name)) {
+		    continue;
+		}
+		JFile child = new JFile(new File(f, name));
+		Stat s = Stat.read(p, dos);
+		if (s != null) {
+		    child.stat = s;
+		    // children of file system directory are never drives or roots
+		    child.type = s.attributes.isDirectory() ? FType.DIRECTORY : FType.FILE;
+		}
+		v.add(ArchiveTypes.wrap(child));
+	    }
+	} catch (IOException | DirectoryIteratorException | InvalidPathException ex) {
+	    return null;
+	}
+	return v.toArray(new VFile[v.size()]);
     }
 
     private VFile[] createFiles(File[] list) {
@@ -232,13 +456,7 @@ public class JFile implements VFile {
 	}
 	VFile[] files = new VFile[list.length];
 	for (int i = 0; i < list.length; i++) {
-	    VFile jFile = new JFile(list[i]);
-
-	    String s = jFile.getName().toUpperCase();
-	    if (s.endsWith(".ZIP") || s.endsWith(".JAR")) {
-		jFile = new VZipFile(jFile);
-	    }
-	    files[i] = jFile;
+	    files[i] = ArchiveTypes.wrap(new JFile(list[i]));
 	}
 	return files;
     }
@@ -255,6 +473,13 @@ public class JFile implements VFile {
     }
 
     public VFile[] listFiles(VFilenameFilter filter) {
+	VFile[] files = readFiles(filter);
+	if (files != null) {
+	    return files;
+	}
+	if (filter == null) {
+	    return createFiles(fsvList());
+	}
 	String[] list = list(filter);
 	return createFiles(list);
     }
@@ -275,6 +500,16 @@ public class JFile implements VFile {
 	if (filter == null) {
 	    return list();
 	}
+	String[] names = readNames();
+	if (names != null) {
+	    ArrayList<String> v = new ArrayList<String>();
+	    for (int i = 0; i < names.length; i++) {
+		if (filter.accept(this, names[i])) {
+		    v.add(names[i]);
+		}
+	    }
+	    return v.toArray(new String[v.size()]);
+	}
 	File[] list = fsvList();
 	return filter(filter, list);
     }
@@ -299,15 +534,18 @@ public class JFile implements VFile {
     }
 
     public void create() throws IOException {
+	refresh();
 	f.createNewFile();
     }
 
     public boolean rename(String name) {
 	File dest = new File(f.getParentFile(), name);
+	refresh();
 	return f.renameTo(dest);
     }
 
     public boolean delete() {
+	refresh();
 	if (!f.exists()) {
 	    return false;
 	}
@@ -321,14 +559,17 @@ public class JFile implements VFile {
     }
 
     public boolean mkdir() {
+	refresh();
 	return f.mkdir();
     }
 
     public boolean mkdirs() {
+	refresh();
 	return f.mkdirs();
     }
 
     public boolean rmdir(boolean rf) {
+	refresh();
 	if (f.isDirectory()) {
 	    if (rf) {
 		return VfsUtil.deleteDirectory(this);
@@ -342,10 +583,18 @@ public class JFile implements VFile {
     }
 
     public long lastModified() {
+	Stat s = stat();
+	if (s != null) {
+	    return s.attributes.lastModifiedTime().toMillis();
+	}
 	return f.lastModified();
     }
 
     public long length() {
+	Stat s = stat();
+	if (s != null) {
+	    return s.attributes.isDirectory() ? 0 : s.attributes.size();
+	}
 	if (f.isDirectory()) {
 	    return 0;
 	}
@@ -353,7 +602,10 @@ public class JFile implements VFile {
     }
 
     public Icon getIcon() {
-	return fileSystemView.getSystemIcon(f);
+	if (nioMode) {
+	    return null;
+	}
+	return Fsv.fileSystemView.getSystemIcon(f);
     }
 
     public String getProtocolName() {
@@ -361,7 +613,7 @@ public class JFile implements VFile {
     }
 
     public void writeFile(InputStream in) throws IOException {
-	byte[] buf = new byte[2048];
+	byte[] buf = new byte[1 << 16];
 	int read = 0;
 	OutputStream out = null;
 	try {
@@ -435,4 +687,60 @@ public class JFile implements VFile {
     public Path toPath() {
 	return f.toPath();
     }
+
+    /**
+     * Snapshot of file attributes.
+     */
+    static final class Stat {
+	final BasicFileAttributes attributes;
+	final boolean hidden;
+	final long time;
+
+	Stat(BasicFileAttributes attributes, boolean hidden) {
+	    this.attributes = attributes;
+	    this.hidden = hidden;
+	    this.time = System.nanoTime();
+	}
+
+	boolean isStale() {
+	    long maxAge = attributesMaxAge;
+	    return maxAge >= 0 && System.nanoTime() - time > maxAge * 1000000L;
+	}
+
+	/**
+	 * @return true if hidden flag is DOS attribute (Windows), else names
+	 *         starting with '.' are hidden. Linux also supports "dos" view
+	 *         (in extended attributes), but it is not used there.
+	 */
+	static boolean isDos(Path p) {
+	    Set<String> views = p.getFileSystem().supportedFileAttributeViews();
+	    return views.contains("dos") && !views.contains("posix");
+	}
+
+	static Stat read(File f) {
+	    try {
+		Path p = f.toPath();
+		return read(p, isDos(p));
+	    } catch (InvalidPathException ex) {
+		return null;
+	    }
+	}
+
+	/**
+	 * @return attributes or null if file doesn't exist
+	 */
+	static Stat read(Path p, boolean dos) {
+	    try {
+		if (dos) {
+		    DosFileAttributes a = Files.readAttributes(p, DosFileAttributes.class);
+		    return new Stat(a, a.isHidden());
+		}
+		BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+		Path name = p.getFileName();
+		return new Stat(a, name != null && name.toString().startsWith("."));
+	    } catch (IOException ex) {
+		return null;
+	    }
+	}
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads headers of tar archive into EntryTable. Offset of each entry is the
+ * position of its data in (uncompressed) tar stream, so entry can be read
+ * later without reading of headers again.
+ * 
+ * Supports ustar, GNU long names and pax extended headers (path, size and
+ * mtime). Links and special files are skipped.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class TarIndex {
+
+	static final int BLOCK = 512;
+
+	private TarIndex() {
+	}
+
+	/**
+	 * @param in
+	 *            tar stream; skip() is used for entry data, so it should be
+	 *            cheap if possible
+	 */
+	static EntryTable read(InputStream in) throws IOException {
+		EntryTable table = new EntryTable(0);
+		byte[] header = new byte[BLOCK];
+		long pos = 0;
+		int index = 0;
+		String longName = null;
+		String paxPath = null;
+		long paxSize = -1;
+		long paxTime = -1;
+		try {
+			while (readBlock(in, header)) {
+				long start = pos;
+				pos += BLOCK;
+				if (isZero(header)) {
+					break;
+				}
+				if (!checksum(header)) {
+					throw new IOException("invalid tar header at " + start);
+				}
+				byte type = header[156];
+				long size = paxSize >= 0 ? paxSize : parseNumber(header, 124, 12);
+				long padded = (size + BLOCK - 1) & ~(BLOCK - 1L);
+
+				switch (type) {
+				case 'L':
+					longName = readString(in, size);
+					skipFully(in, padded - size);
+					pos += padded;
+					continue;
+				case 'x':
+					String pax = readString(in, size);
+					skipFully(in, padded - size);
+					pos += padded;
+					for (String record : parsePax(pax)) {
+						int eq = record.indexOf('=');
+						String key = record.substring(0, eq);
+						String value = record.substring(eq + 1);
+						if (key.equals("path")) {
+							paxPath = value;
+						} else if (key.equals("size")) {
+							paxSize = Long.parseLong(value);
+						} else if (key.equals("mtime")) {
+							paxTime = (long) (Double.parseDouble(value) * 1000);
+						}
+					}
+					continue;
+				default:
+					break;
+				}
+
+				String name = paxPath != null ? paxPath : longName != null ? longName : parseName(header);
+				long time = paxTime >= 0 ? paxTime : parseNumber(header, 136, 12) * 1000;
+				while (name.startsWith("./")) {
+					name = name.substring(2);
+				}
+				if (name.isEmpty() || name.equals(".")) {
+					// archive root
+					type = -1;
+				}
+				switch (type) {
+				case '5':
+					if (!name.endsWith("/")) {
+						name = name + "/";
+					}
+					table.add(name, index++, 0, 0, 0, 0, pos, time);
+					break;
+				case '0':
+				case 0:
+				case '7':
+					table.add(name, index++, 0, 0, size, size, pos, time);
+					break;
+				default:
+					// links, devices, global pax headers etc.
+					break;
+				}
+				skipFully(in, padded);
+				pos += padded;
+				longName = null;
+				paxPath = null;
+				paxSize = -1;
+				paxTime = -1;
+			}
+		} finally {
+			table.trim();
+		}
+		return table;
+	}
+
+	private static boolean readBlock(InputStream in, byte[] b) throws IOException {
+		int count = 0;
+		while (count < b.length) {
+			int read = in.read(b, count, b.length - count);
+			if (read < 0) {
+				if (count == 0) {
+					return false;
+				}
+				throw new EOFException("truncated tar header");
+			}
+			count += read;
+		}
+		return true;
+	}
+
+	static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("truncated tar entry");
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static String readString(InputStream in, long size) throws IOException {
+		if (size > 1 << 20) {
+			throw new IOException("tar extended header too large: " + size);
+		}
+		byte[] b = new byte[(int) size];
+		int count = 0;
+		while (count < b.length) {
+			int read = in.read(b, count, b.length - count);
+			if (read < 0) {
+				throw new EOFException("truncated tar header");
+			}
+			count += read;
+		}
+		int len = b.length;
+		while (len > 0 && b[len - 1] == 0) {
+			len--;
+		}
+		return new String(b, 0, len, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * pax records: "length key=value\n"
+	 */
+	private static String[] parsePax(String s) throws IOException {
+		ArrayList<String> records = new ArrayList<String>();
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		int pos = 0;
+		while (pos < b.length) {
+			int sp = pos;
+			while (sp < b.length && b[sp] != ' ') {
+				sp++;
+			}
+			if (sp == b.length) {
+				break;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(new String(b, pos, sp - pos, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException ex) {
+				throw new IOException("invalid pax header");
+			}
+			if (length <= sp - pos + 1 || pos + length > b.length) {
+				throw new IOException("invalid pax header");
+			}
+			String record = new String(b, sp + 1, pos + length - sp - 2, StandardCharsets.UTF_8);
+			if (record.indexOf('=') > 0) {
+				records.add(record);
+			}
+			pos += length;
+		}
+		return records.toArray(new String[records.size()]);
+	}
+
+	private static String parseName(byte[] header) {
+		String name = parseString(header, 0, 100);
+		if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+				&& header[261] == 'r') {
+			String prefix = parseString(header, 345, 155);
+			if (!prefix.isEmpty()) {
+				name = prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private static String parseString(byte[] b, int off, int len) {
+		int end = off;
+		while (end < off + len && b[end] != 0) {
+			end++;
+		}
+		return new String(b, off, end - off, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Octal number or (GNU) base-256 number if high bit of first byte is set.
+	 */
+	static long parseNumber(byte[] b, int off, int len) {
+		if ((b[off] & 0x80) != 0) {
+			long v = b[off] & 0x7F;
+			for (int i = 1; i < len; i++) {
+				v = (v << 8) | (b[off + i] & 0xFF);
+			}
+			return v;
+		}
+		long v = 0;
+		int end = off + len;
+		int i = off;
+		while (i < end && (b[i] == ' ' || b[i] == 0)) {
+			i++;
+		}
+		for (; i < end && b[i] >= '0' && b[i] <= '7'; i++) {
+			v = (v << 3) | (b[i] - '0');
+		}
+		return v;
+	}
+
+	private static boolean checksum(byte[] header) {
+		long stored = parseNumber(header, 148, 8);
+		long unsigned = 0;
+		long signed = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			int b = (i >= 148 && i < 156) ? ' ' : header[i];
+			unsigned += b & 0xFF;
+			signed += b;
+		}
+		return stored == unsigned || stored == signed;
+	}
+
+	private static boolean isZero(byte[] b) {
+		for (int i = 0; i < b.length; i++) {
+			if (b[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Locale;
+
+import javax.swing.Icon;
+
+import com.smartg.java.util.ArrayIterator;
+
+/**
+ * Gzip compressed file as VFile. It is shown as directory with one entry -
+ * the uncompressed file (name without ".gz").
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class VGzipFile implements VFile {
+
+	private final VFile file;
+	private final String entryName;
+
+	private VFile entry;
+	private GzipIndex index;
+
+	/**
+	 * Set distance between access points of new gzip indexes in uncompressed
+	 * bytes (1 MB by default), e.g. 8L << 20 for an access point every 8 MB.
+	 * Zero disables creation of indexes. Applies also to .tar.gz archives
+	 * (VTarFile).
+	 */
+	public static void setIndexSpan(long span) {
+		if (span < 0) {
+			throw new IllegalArgumentException("span: " + span);
+		}
+		GzipIndex.setDefaultSpan(span);
+	}
+
+	/**
+	 * @return distance between access points of new gzip indexes
+	 */
+	public static long getIndexSpan() {
+		return GzipIndex.getDefaultSpan();
+	}
+
+	public VGzipFile(VFile file) {
+		this.file = file;
+		String name = file.getName();
+		if (name != null && name.toUpperCase(Locale.ENGLISH).endsWith(".GZ")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		if (name == null || name.isEmpty()) {
+			name = "data";
+		}
+		this.entryName = name;
+	}
+
+	VFile getFile() {
+		return file;
+	}
+
+	String getEntryName() {
+		return entryName;
+	}
+
+	/**
+	 * @return uncompressed file (or archive view of it)
+	 */
+	public synchronized VFile getEntry() {
+		if (entry == null) {
+			entry = ArchiveTypes.wrap(new VGzipFileEntry(this));
+		}
+		return entry;
+	}
+
+	/**
+	 * @return path of file if it can be read with random access, or null
+	 */
+	Path getSeekablePath() {
+		if (file instanceof JFile) {
+			Path path = file.toPath();
+			if (path != null && Files.isRegularFile(path)) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get random access index of file. Index of local file is loaded from
+	 * (and stored to) file beside the gzip file, index of other files is kept
+	 * in memory only.
+	 * 
+	 * @param create
+	 *            if true and there is no index yet, whole file is decoded to
+	 *            create index
+	 * @return index or null
+	 */
+	synchronized GzipIndex getIndex(boolean create) throws IOException {
+		if (index == null) {
+			Path path = getSeekablePath();
+			if (path != null) {
+				index = GzipIndex.load(path);
+			}
+			long span = GzipIndex.getDefaultSpan();
+			if (index == null && create && span > 0) {
+				index = GzipIndex.build(file.getInputStream(), span);
+				if (path != null) {
+					index.store(path);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Create random access index of file (if there is no index yet). After
+	 * this VGzipFileEntry.getInputStream(long) starts decoding at nearest
+	 * access point.
+	 */
+	public void createIndex() throws IOException {
+		getIndex(true);
+	}
+
+	/**
+	 * Forget index after file was changed.
+	 */
+	synchronized void invalidateIndex() {
+		index = null;
+		Path path = getSeekablePath();
+		if (path != null) {
+			GzipIndex.delete(path);
+		}
+	}
+
+	/**
+	 * Read uncompressed size from gzip trailer (ISIZE). ISIZE is size modulo
+	 * 2^32 of the last member only, so it is used only if file is smaller
+	 * than 4 GB.
+	 * 
+	 * @return uncompressed size or -1 if unknown
+	 */
+	long readSize() {
+		Path path = getSeekablePath();
+		if (path == null) {
+			return -1;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < 18 || length >= 0xFFFFFFFFL) {
+				return -1;
+			}
+			ByteBuffer b = ZipDirectory.readFully(channel, length - 4, 4);
+			long size = b.getInt(0) & 0xFFFFFFFFL;
+			// compressed data can't be much larger than uncompressed data
+			if (size < length / 2 - 64) {
+				return -1;
+			}
+			return size;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public void create() throws IOException {
+		file.create();
+	}
+
+	@Override
+	public boolean delete() {
+		return file.delete();
+	}
+
+	@Override
+	public boolean exists() {
+		return file.exists();
+	}
+
+	@Override
+	public VFile get(String s) {
+		if (entryName.equals(s)) {
+			return getEntry();
+		}
+		return null;
+	}
+
+	@Override
+	public String getAbsolutePath() {
+		return file.getAbsolutePath();
+	}
+
+	@Override
+	public Path toPath() {
+		return file.toPath();
+	}
+
+	@Override
+	public String getDisplayName() {
+		return file.getDisplayName();
+	}
+
+	@Override
+	public Icon getIcon() {
+		return file.getIcon();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return file.getInputStream();
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		invalidateIndex();
+		return file.getOutputStream();
+	}
+
+	@Override
+	public String getParent() {
+		return file.getParent();
+	}
+
+	@Override
+	public VFile getParentFile() {
+		return file.getParentFile();
+	}
+
+	@Override
+	public int getPos() {
+		return file.getPos();
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return true;
+	}
+
+	@Override
+	public boolean isHidden() {
+		return file.isHidden();
+	}
+
+	@Override
+	public long lastModified() {
+		return file.lastModified();
+	}
+
+	@Override
+	public long length() {
+		return file.length();
+	}
+
+	@Override
+	public String[] list() {
+		return new String[] { entryName };
+	}
+
+	@Override
+	public String[] list(VFilenameFilter filter) {
+		if (filter.accept(this, entryName)) {
+			return list();
+		}
+		return new String[0];
+	}
+
+	@Override
+	public VFile[] listFiles() {
+		return new VFile[] { getEntry() };
+	}
+
+	@Override
+	public VFile[] listFiles(VFilenameFilter filter) {
+		ArrayList<VFile> v = new ArrayList<VFile>();
+		if (filter.accept(this, entryName)) {
+			v.add(getEntry());
+		}
+		return v.toArray(new VFile[v.size()]);
+	}
+
+	@Override
+	public boolean mkdir() {
+		return false;
+	}
+
+	@Override
+	public boolean mkdirs() {
+		return false;
+	}
+
+	@Override
+	public boolean rename(String name) {
+		return file.rename(name);
+	}
+
+	@Override
+	public boolean rmdir(boolean rf) {
+		return false;
+	}
+
+	@Override
+	public void setDisplayName(String displayName) throws IOException {
+		file.setDisplayName(displayName);
+	}
+
+	@Override
+	public void setHidden(boolean hidden) throws IOException {
+		file.setHidden(hidden);
+	}
+
+	@Override
+	public void setPos(int pos) throws IOException {
+		file.setPos(pos);
+	}
+
+	@Override
+	public String toString() {
+		return getDisplayName();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof VGzipFile) {
+			VGzipFile gz = (VGzipFile) obj;
+			return gz.getAbsolutePath().equals(getAbsolutePath());
+		}
+		return false;
+	}
+
+	@Override
+	public String getProtocolName() {
+		return "gzip";
+	}
+
+	@Override
+	public int hashCode() {
+		return getAbsolutePath().toLowerCase(Locale.ENGLISH).hashCode() ^ 2143412;
+	}
+
+	/**
+	 * Replace whole (compressed) file.
+	 */
+	@Override
+	public synchronized void writeFile(InputStream in) throws IOException {
+		invalidateIndex();
+		file.writeFile(in);
+		entry = null;
+	}
+
+	@Override
+	public Enumeration<VFile> files() {
+		return new ArrayIterator<VFile>(listFiles());
+	}
+
+	@Override
+	public Enumeration<String> names() throws IOException {
+		return new ArrayIterator<String>(list());
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.swing.Icon;
+
+import com.smartg.java.util.EmptyEnumeration;
+
+/**
+ * Uncompressed content of gzip file.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class VGzipFileEntry implements VFile, RangeFile {
+
+	final VGzipFile root;
+
+	private volatile long length = -2;
+
+	VGzipFileEntry(VGzipFile root) {
+		this.root = root;
+	}
+
+	public void create() throws IOException {
+	}
+
+	public boolean delete() {
+		return false;
+	}
+
+	public boolean exists() {
+		return root.exists();
+	}
+
+	public VFile get(String s) {
+		return null;
+	}
+
+	public String getAbsolutePath() {
+		return root.getAbsolutePath() + "/" + getName();
+	}
+
+	public Path toPath() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return getName();
+	}
+
+	public Icon getIcon() {
+		return null;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		GzipIndex index = root.getIndex(false);
+		if (index != null) {
+			return new GzipRangeInputStream(root.getFile(), index, 0);
+		}
+		return new GZIPInputStream(root.getInputStream(), VTarFile.BUFFER_SIZE);
+	}
+
+	/**
+	 * Get uncompressed data starting at position. Index of file is created if
+	 * necessary, so only first call decodes whole file. skip() of returned
+	 * stream also uses index.
+	 */
+	public InputStream getInputStream(long position) throws IOException {
+		GzipIndex index = root.getIndex(true);
+		if (index == null) {
+			InputStream in = getInputStream();
+			try {
+				TarIndex.skipFully(in, position);
+			} catch (IOException ex) {
+				VfsUtil.close(in);
+				throw ex;
+			}
+			return in;
+		}
+		return new GzipRangeInputStream(root.getFile(), index, position);
+	}
+
+	public InputStream openRange(long offset, long length) throws IOException {
+		InputStream in = getInputStream(offset);
+		if (length < 0) {
+			return in;
+		}
+		return new VTarFile.EntryInputStream(in, length);
+	}
+
+	public int read(long offset, ByteBuffer dst) throws IOException {
+		InputStream in = openRange(offset, dst.remaining());
+		try {
+			return VfsUtil.read(in, dst);
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getName() {
+		return root.getEntryName();
+	}
+
+	/**
+	 * Data written to this stream is compressed and replaces the gzip file.
+	 */
+	public OutputStream getOutputStream() throws IOException {
+		length = -2;
+		root.invalidateIndex();
+		return new GZIPOutputStream(root.getFile().getOutputStream(), VTarFile.BUFFER_SIZE);
+	}
+
+	public String getParent() {
+		return root.getName();
+	}
+
+	public VFile getParentFile() {
+		return root;
+	}
+
+	public int getPos() {
+		return 0;
+	}
+
+	public boolean isDirectory() {
+		return false;
+	}
+
+	public boolean isHidden() {
+		return false;
+	}
+
+	public long lastModified() {
+		return root.lastModified();
+	}
+
+	/**
+	 * @return uncompressed size from index or gzip trailer, or -1 if it is
+	 *         unknown
+	 */
+	public long length() {
+		long n = length;
+		if (n == -2) {
+			GzipIndex index = null;
+			try {
+				index = root.getIndex(false);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			if (index == null) {
+				// not cached: size is unknown or only ISIZE of last member,
+				// index may be built later
+				return root.readSize();
+			}
+			n = index.size;
+			length = n;
+		}
+		return n;
+	}
+
+	public String[] list() {
+		return null;
+	}
+
+	public String[] list(VFilenameFilter filter) {
+		return null;
+	}
+
+	public VFile[] listFiles() {
+		return null;
+	}
+
+	public VFile[] listFiles(VFilenameFilter filter) {
+		return null;
+	}
+
+	public boolean mkdir() {
+		return false;
+	}
+
+	public boolean mkdirs() {
+		return false;
+	}
+
+	public boolean rename(String name) {
+		return false;
+	}
+
+	public boolean rmdir(boolean rf) {
+		return false;
+	}
+
+	public void setDisplayName(String displayName) throws IOException {
+	}
+
+	public void setHidden(boolean hidden) throws IOException {
+	}
+
+	public void setPos(int pos) throws IOException {
+	}
+
+	public String toString() {
+		return getDisplayName();
+	}
+
+	public boolean equals(Object obj) {
+		if (obj instanceof VGzipFileEntry) {
+			return root.equals(((VGzipFileEntry) obj).root);
+		}
+		return false;
+	}
+
+	public String getProtocolName() {
+		return "gzip";
+	}
+
+	@Override
+	public int hashCode() {
+		return root.hashCode() * 31;
+	}
+
+	/**
+	 * Compress data from in and replace the gzip file.
+	 */
+	public void writeFile(InputStream in) throws IOException {
+		OutputStream out = getOutputStream();
+		try {
+			byte[] buf = new byte[InflaterPool.BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				out.write(buf, 0, read);
+			}
+		} finally {
+			VfsUtil.close(out);
+		}
+	}
+
+	public Enumeration<VFile> files() {
+		return new EmptyEnumeration<VFile>();
+	}
+
+	public Enumeration<String> names() throws IOException {
+		return new EmptyEnumeration<String>();
+	}
+}
@@ -32,6 +32,10 @@ package com.smartg.java.vfs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.util.Enumeration;
 
@@ -43,7 +47,7 @@ import javax.swing.Icon;
  * @author andrey
  * 
  */
-public abstract class VProxyFile implements VFile {
+public abstract class VProxyFile implements VFile, ChannelFile, RangeFile {
 
 
     private final VFile file;
@@ -171,6 +175,26 @@ public abstract class VProxyFile implements VFile {
 	return file.getOutputStream();
     }
 
+    public int read(long offset, ByteBuffer dst) throws IOException {
+	return VfsUtil.read(file, offset, dst);
+    }
+
+    public InputStream openRange(long offset, long length) throws IOException {
+	return VfsUtil.openRange(file, offset, length);
+    }
+
+    public ReadableByteChannel getReadableChannel() throws IOException {
+	return VfsUtil.openReadableChannel(file);
+    }
+
+    public SeekableByteChannel getSeekableChannel() throws IOException {
+	return VfsUtil.openSeekableChannel(file);
+    }
+
+    public WritableByteChannel getWritableChannel() throws IOException {
+	return VfsUtil.openWritableChannel(file);
+    }
+
     public String[] list() {
 	return file.list();
     }
@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.swing.Icon;
+
+import com.smartg.java.util.ArrayIterator;
+
+/**
+ * Tar archive (optionally gzip compressed) as VFile.
+ * 
+ * Headers are read once, on first access, into EntryTable which holds
+ * position of data of every entry. Entries of local uncompressed archive
+ * are read directly at this position, other archives are read from start
+ * and skipped to entry data without parsing of headers. Index of local
+ * archives is stored in ZipIndexCache (if enabled).
+ * 
+ * Headers of compressed archive are read with GzipDecoder which also creates
+ * GzipIndex, so entries are decoded from nearest access point and not from
+ * start of archive.
+ * 
+ * Tar archives are read only.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class VTarFile implements VFile {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final VFile file;
+	private final boolean compressed;
+
+	/**
+	 * all entries and implied directories
+	 */
+	private EntryTable table;
+
+	/**
+	 * access points of compressed archive
+	 */
+	private GzipIndex gzIndex;
+
+	/**
+	 * nested archives by node
+	 */
+	private final Map<Integer, VFile> archives = new HashMap<Integer, VFile>();
+
+	volatile boolean initialized;
+
+	/**
+	 * @param file
+	 *            archive file
+	 * @param compressed
+	 *            true if archive is gzip compressed (.tar.gz)
+	 */
+	public VTarFile(VFile file, boolean compressed) {
+		this.file = file;
+		this.compressed = compressed;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	synchronized void init() {
+		if (initialized) {
+			return;
+		}
+		try {
+			Path path = getSeekablePath();
+			ZipIndexCache cache = path != null ? ZipIndexCache.getDefault() : null;
+			ZipDirectory cached = cache != null ? cache.load(path) : null;
+			if (cached != null) {
+				table = cached.table;
+				return;
+			}
+			InputStream in = null;
+			try {
+				long span = GzipIndex.getDefaultSpan();
+				if (compressed && span > 0) {
+					GzipIndex index = new GzipIndex(span);
+					GzipDecoder decoder = new GzipDecoder(file.getInputStream());
+					in = decoder;
+					decoder.setBlockListener(index.new Builder());
+					table = TarIndex.read(decoder);
+					index.finish(decoder);
+					gzIndex = index;
+					if (path != null) {
+						index.store(path);
+					}
+				} else {
+					in = openTarStream();
+					table = TarIndex.read(in);
+				}
+				if (cache != null) {
+					cache.store(path, new ZipDirectory(table));
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				if (table == null) {
+					table = new EntryTable(0);
+					table.trim();
+				}
+			} finally {
+				VfsUtil.close(in);
+			}
+		} finally {
+			initialized = true;
+		}
+	}
+
+	/**
+	 * @return uncompressed tar stream
+	 */
+	private InputStream openTarStream() throws IOException {
+		Path path = getSeekablePath();
+		if (path != null && !compressed) {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			return new ChannelRangeInputStream(channel, 0, channel.size(), true);
+		}
+		InputStream in = file.getInputStream();
+		if (compressed) {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return new BufferedInputStream(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * @return path of archive if it can be read with random access, or null
+	 */
+	Path getSeekablePath() {
+		if (file instanceof JFile) {
+			Path path = file.toPath();
+			if (path != null && Files.isRegularFile(path)) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	EntryTable getTable() {
+		if (!initialized) {
+			init();
+		}
+		return table;
+	}
+
+	VFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return index of compressed archive or null
+	 */
+	private synchronized GzipIndex getGzipIndex() throws IOException {
+		if (gzIndex == null && GzipIndex.getDefaultSpan() > 0) {
+			Path path = getSeekablePath();
+			if (path != null) {
+				gzIndex = GzipIndex.load(path);
+			}
+			if (gzIndex == null) {
+				gzIndex = GzipIndex.build(file.getInputStream(), GzipIndex.getDefaultSpan());
+				if (path != null) {
+					gzIndex.store(path);
+				}
+			}
+		}
+		return gzIndex;
+	}
+
+	/**
+	 * Open data of entry starting at position.
+	 * 
+	 * @param length
+	 *            max count of bytes or -1 for the rest of entry
+	 */
+	InputStream getEntryInputStream(int node, long position, long length) throws IOException {
+		EntryTable table = getTable();
+		if (table.isDirectory(node)) {
+			throw new IOException("not a file: " + table.getPath(node));
+		}
+		position = Math.min(Math.max(0, position), table.getSize(node));
+		long offset = table.getOffset(node) + position;
+		long size = table.getSize(node) - position;
+		if (length >= 0) {
+			size = Math.min(size, length);
+		}
+		Path path = getSeekablePath();
+		if (path != null && !compressed) {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			return new ChannelRangeInputStream(channel, offset, size, true);
+		}
+		if (compressed) {
+			GzipIndex index = getGzipIndex();
+			if (index != null) {
+				return new EntryInputStream(new GzipRangeInputStream(file, index, offset), size);
+			}
+		}
+		InputStream in = openTarStream();
+		try {
+			TarIndex.skipFully(in, offset);
+		} catch (IOException ex) {
+			VfsUtil.close(in);
+			throw ex;
+		}
+		return new EntryInputStream(in, size);
+	}
+
+	/**
+	 * Get VFile for node. Nested archives are cached, because they hold
+	 * their own index.
+	 */
+	VFile getNode(int node) {
+		if (node == EntryTable.ROOT) {
+			return this;
+		}
+		if (!table.isDirectory(node)) {
+			ArchiveFactory factory = ArchiveTypes.find(table.getName(node));
+			if (factory != null) {
+				synchronized (archives) {
+					VFile archive = archives.get(node);
+					if (archive == null) {
+						archive = factory.create(new VTarFileEntry(this, node));
+						archives.put(node, archive);
+					}
+					return archive;
+				}
+			}
+		}
+		return new VTarFileEntry(this, node);
+	}
+
+	VFile get(int node, String s) {
+		int child = table.child(node, s);
+		if (child == EntryTable.NONE) {
+			return null;
+		}
+		return getNode(child);
+	}
+
+	String[] list(int node) {
+		String[] names = new String[table.getChildCount(node)];
+		int i = 0;
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			names[i++] = table.getName(c);
+		}
+		return names;
+	}
+
+	VFile[] listFiles(int node) {
+		VFile[] files = new VFile[table.getChildCount(node)];
+		int i = 0;
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			files[i++] = getNode(c);
+		}
+		return files;
+	}
+
+	String[] list(int node, VFilenameFilter filter) {
+		VFile dir = getNode(node);
+		ArrayList<String> v = new ArrayList<String>();
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			String name = table.getName(c);
+			if (filter.accept(dir, name)) {
+				v.add(name);
+			}
+		}
+		return v.toArray(new String[v.size()]);
+	}
+
+	VFile[] listFiles(int node, VFilenameFilter filter) {
+		VFile dir = getNode(node);
+		ArrayList<VFile> v = new ArrayList<VFile>();
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			if (filter.accept(dir, table.getName(c))) {
+				v.add(getNode(c));
+			}
+		}
+		return v.toArray(new VFile[v.size()]);
+	}
+
+	/**
+	 * Find entry by its full path inside of archive.
+	 * 
+	 * @return VFile or null if there is no such entry
+	 */
+	public VFile resolve(String path) {
+		int node = getTable().find(path);
+		if (node == EntryTable.NONE) {
+			return null;
+		}
+		return getNode(node);
+	}
+
+	@Override
+	public void create() throws IOException {
+		throw new IOException("tar archives are read only");
+	}
+
+	@Override
+	public boolean delete() {
+		return file.delete();
+	}
+
+	@Override
+	public boolean exists() {
+		return file.exists();
+	}
+
+	@Override
+	public VFile get(String s) {
+		getTable();
+		return get(EntryTable.ROOT, s);
+	}
+
+	@Override
+	public String getAbsolutePath() {
+		return file.getAbsolutePath();
+	}
+
+	@Override
+	public Path toPath() {
+		return file.toPath();
+	}
+
+	@Override
+	public String getDisplayName() {
+		return file.getDisplayName();
+	}
+
+	@Override
+	public Icon getIcon() {
+		return file.getIcon();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return file.getInputStream();
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return file.getOutputStream();
+	}
+
+	@Override
+	public String getParent() {
+		return file.getParent();
+	}
+
+	@Override
+	public VFile getParentFile() {
+		return file.getParentFile();
+	}
+
+	@Override
+	public int getPos() {
+		return file.getPos();
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return true;
+	}
+
+	@Override
+	public boolean isHidden() {
+		return file.isHidden();
+	}
+
+	@Override
+	public long lastModified() {
+		return file.lastModified();
+	}
+
+	@Override
+	public long length() {
+		return file.length();
+	}
+
+	@Override
+	public String[] list() {
+		getTable();
+		return list(EntryTable.ROOT);
+	}
+
+	@Override
+	public String[] list(VFilenameFilter filter) {
+		getTable();
+		return list(EntryTable.ROOT, filter);
+	}
+
+	@Override
+	public VFile[] listFiles() {
+		getTable();
+		return listFiles(EntryTable.ROOT);
+	}
+
+	@Override
+	public VFile[] listFiles(VFilenameFilter filter) {
+		getTable();
+		return listFiles(EntryTable.ROOT, filter);
+	}
+
+	@Override
+	public boolean mkdir() {
+		return false;
+	}
+
+	@Override
+	public boolean mkdirs() {
+		return false;
+	}
+
+	@Override
+	public boolean rename(String name) {
+		return file.rename(name);
+	}
+
+	@Override
+	public boolean rmdir(boolean rf) {
+		return false;
+	}
+
+	@Override
+	public void setDisplayName(String displayName) throws IOException {
+		file.setDisplayName(displayName);
+	}
+
+	@Override
+	public void setHidden(boolean hidden) throws IOException {
+		file.setHidden(hidden);
+	}
+
+	@Override
+	public void setPos(int pos) throws IOException {
+		file.setPos(pos);
+	}
+
+	@Override
+	public String toString() {
+		return getDisplayName();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof VTarFile) {
+			VTarFile tar = (VTarFile) obj;
+			return tar.getAbsolutePath().equals(getAbsolutePath());
+		}
+		return false;
+	}
+
+	@Override
+	public String getProtocolName() {
+		return "tar";
+	}
+
+	@Override
+	public int hashCode() {
+		return getAbsolutePath().toLowerCase(Locale.ENGLISH).hashCode() ^ 4321234;
+	}
+
+	/**
+	 * Replace whole archive.
+	 */
+	@Override
+	public synchronized void writeFile(InputStream in) throws IOException {
+		try {
+			file.writeFile(in);
+		} finally {
+			initialized = false;
+			table = null;
+			synchronized (archives) {
+				archives.clear();
+			}
+		}
+	}
+
+	@Override
+	public Enumeration<VFile> files() {
+		return new ArrayIterator<VFile>(listFiles());
+	}
+
+	@Override
+	public Enumeration<String> names() throws IOException {
+		return new ArrayIterator<String>(list());
+	}
+
+	/**
+	 * Reads size bytes of entry data from tar stream.
+	 */
+	static class EntryInputStream extends FilterInputStream {
+		private long remaining;
+
+		EntryInputStream(InputStream in, long size) {
+			super(in);
+			this.remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			if (skipped > 0) {
+				remaining -= skipped;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
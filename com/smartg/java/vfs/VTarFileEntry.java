@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Enumeration;
+
+import javax.swing.Icon;
+
+import com.smartg.java.util.ArrayIterator;
+
+/**
+ * Entry (or implied directory) of tar archive. Like VZipFileEntry it is
+ * just a view of one node of archive's EntryTable.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class VTarFileEntry implements VFile, RangeFile {
+
+	final VTarFile root;
+	final int node;
+
+	VTarFileEntry(VTarFile root, int node) {
+		this.root = root;
+		this.node = node;
+	}
+
+	EntryTable table() {
+		return root.getTable();
+	}
+
+	public void create() throws IOException {
+	}
+
+	public boolean delete() {
+		return false;
+	}
+
+	public boolean exists() {
+		return true;
+	}
+
+	public VFile get(String s) {
+		return root.get(node, s);
+	}
+
+	public String getAbsolutePath() {
+		return root.getAbsolutePath() + "/" + table().getPath(node);
+	}
+
+	public Path toPath() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return getName();
+	}
+
+	public Icon getIcon() {
+		return null;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return root.getEntryInputStream(node, 0, -1);
+	}
+
+	public InputStream openRange(long offset, long length) throws IOException {
+		return root.getEntryInputStream(node, offset, length);
+	}
+
+	public int read(long offset, ByteBuffer dst) throws IOException {
+		InputStream in = openRange(offset, dst.remaining());
+		try {
+			return VfsUtil.read(in, dst);
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getName() {
+		return table().getName(node);
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("tar archives are read only");
+	}
+
+	public String getParent() {
+		return getParentFile().getName();
+	}
+
+	public VFile getParentFile() {
+		return root.getNode(table().getParent(node));
+	}
+
+	public int getPos() {
+		return 0;
+	}
+
+	public boolean isDirectory() {
+		return table().isDirectory(node);
+	}
+
+	public boolean isHidden() {
+		return false;
+	}
+
+	/**
+	 * @return modification time from tar header. Implied directories get
+	 *         archive's time.
+	 */
+	public long lastModified() {
+		long time = table().getTime(node);
+		if (time == -1) {
+			return root.lastModified();
+		}
+		return time;
+	}
+
+	public long length() {
+		return table().getSize(node);
+	}
+
+	public String[] list() {
+		return root.list(node);
+	}
+
+	public String[] list(VFilenameFilter filter) {
+		return root.list(node, filter);
+	}
+
+	public VFile[] listFiles() {
+		return root.listFiles(node);
+	}
+
+	public VFile[] listFiles(VFilenameFilter filter) {
+		return root.listFiles(node, filter);
+	}
+
+	public boolean mkdir() {
+		return false;
+	}
+
+	public boolean mkdirs() {
+		return false;
+	}
+
+	public boolean rename(String name) {
+		return false;
+	}
+
+	public boolean rmdir(boolean rf) {
+		return false;
+	}
+
+	public void setDisplayName(String displayName) throws IOException {
+	}
+
+	public void setHidden(boolean hidden) throws IOException {
+	}
+
+	public void setPos(int pos) throws IOException {
+	}
+
+	public String toString() {
+		return getDisplayName();
+	}
+
+	public boolean equals(Object obj) {
+		if (obj instanceof VTarFileEntry) {
+			VTarFileEntry entry = (VTarFileEntry) obj;
+			return root.equals(entry.root) && node == entry.node;
+		}
+		return false;
+	}
+
+	public String getProtocolName() {
+		return "tar";
+	}
+
+	@Override
+	public int hashCode() {
+		return root.hashCode() * 31 + node;
+	}
+
+	public void writeFile(InputStream in) throws IOException {
+		throw new IOException("tar archives are read only");
+	}
+
+	public Enumeration<VFile> files() {
+		return new ArrayIterator<VFile>(listFiles());
+	}
+
+	public Enumeration<String> names() throws IOException {
+		return new ArrayIterator<String>(list());
+	}
+}
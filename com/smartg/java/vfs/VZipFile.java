@@ -33,7 +33,11 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -45,79 +49,343 @@ import java.util.zip.ZipInputStream;
 import javax.swing.Icon;
 
 import com.smartg.java.util.ArrayIterator;
-import com.smartg.java.util.SafeIterator;
 
 public class VZipFile implements VFile {
 
 	private VFile file;
 
-	private Map<String, VFile> map = new HashMap<>();
-	private ArrayList<VFile> children = new ArrayList<>();
+	/**
+	 * all entries and implied directories
+	 */
+	private EntryTable table;
+
+	/**
+	 * nested archives by node
+	 */
+	private final Map<Integer, VFile> archives = new HashMap<>();
+
+	/**
+	 * central directory, only available if archive is seekable
+	 */
+	private ZipDirectory directory;
+
+	private static volatile boolean mappedByDefault;
+
+	private boolean mapped = mappedByDefault;
+
+	/**
+	 * whole archive, if archive is memory-mapped
+	 */
+	private ByteBuffer buffer;
 
 	volatile boolean initialized;
 
+	/**
+	 * VZipFileEntry.getVersion() of nested archive when it was read
+	 */
+	private int fileVersion;
+
+	/**
+	 * changes which are not yet committed
+	 */
+	private ZipChangeSet changes;
+
 	public VZipFile(VFile file) {
 		this.file = file;
 	}
 
-	private void add(String[] path, int zipIndex, long size) {
-		if (path.length == 0) {
-			return;
+	/**
+	 * Get VFile for node. VFiles are created on demand, only nested archives
+	 * are cached (because they hold their own index).
+	 */
+	VFile getNode(int node) {
+		if (node == EntryTable.ROOT) {
+			return this;
 		}
-		String key = path[0];
-
-		if (path.length == 1) {
-			VZipFileEntry entry = (VZipFileEntry) map.get(key);
-			if (entry == null) {
-				entry = new VZipFileEntry(this, this, key, zipIndex, size);
-				String name = entry.getName().toUpperCase();
-				if (name.endsWith(".ZIP") || name.endsWith(".JAR")) {
-					VZipFile zip = new VZipFile(entry);
-					map.put(key, zip);
-					children.add(zip);
-				} else {
-					map.put(key, entry);
-					children.add(entry);
+		if (!table.isDirectory(node)) {
+			ArchiveFactory factory = ArchiveTypes.find(table.getName(node));
+			if (factory != null) {
+				synchronized (archives) {
+					VFile archive = archives.get(node);
+					if (archive == null) {
+						archive = factory.create(new VZipFileEntry(this, node));
+						archives.put(node, archive);
+					}
+					return archive;
 				}
-			} else {
-				entry.setSize(size);
-				entry.setZipEntryIndex(zipIndex);
 			}
-		} else {
-			VZipFileEntry entry = (VZipFileEntry) map.get(path[0]);
-			if (entry == null) {
-				entry = new VZipFileEntry(this, this, key, -1, -1);
-				map.put(key, entry);
-				children.add(entry);
+		}
+		return new VZipFileEntry(this, node);
+	}
+
+	/**
+	 * Extract all entries of archive to target directory.
+	 * 
+	 * @param target
+	 *            destination directory
+	 * @param parallelism
+	 *            max count of threads which inflate entries at same time
+	 * @param listener
+	 *            ProgressListener or null
+	 */
+	public void extract(VFile target, int parallelism, ProgressListener listener) throws IOException {
+		new ZipExtractor(this, listener).extract(target, parallelism);
+	}
+
+	private synchronized ZipChangeSet getChanges() {
+		if (changes == null) {
+			changes = new ZipChangeSet(this);
+		}
+		return changes;
+	}
+
+	/**
+	 * Add or replace entry. Change is written to archive on commit().
+	 * 
+	 * @param path
+	 *            full path of entry inside of archive (e.g. "a/b/c.txt")
+	 * @param in
+	 *            new content of entry
+	 */
+	public void put(String path, InputStream in) throws IOException {
+		getChanges().put(path, in);
+	}
+
+	/**
+	 * Get OutputStream for new content of entry. Entry is added (or replaced)
+	 * when stream is closed, and written to archive on commit().
+	 */
+	public OutputStream getEntryOutputStream(String path) throws IOException {
+		return getChanges().getOutputStream(path);
+	}
+
+	/**
+	 * Add directory entry. Change is written to archive on commit().
+	 */
+	public void addDirectory(String path) throws IOException {
+		getChanges().mkdir(path);
+	}
+
+	/**
+	 * Remove entry (directories are removed with all their entries). Change
+	 * is written to archive on commit().
+	 * 
+	 * @return false if there is no such entry
+	 */
+	public boolean remove(String path) throws IOException {
+		return getChanges().remove(path);
+	}
+
+	/**
+	 * @return true if there are changes which are not yet committed
+	 */
+	public synchronized boolean isModified() {
+		return changes != null && !changes.isEmpty();
+	}
+
+	/**
+	 * Write all changes to archive. If entries are only added, they are
+	 * appended to archive in place, otherwise archive is rebuilt. Untouched
+	 * entries are never recompressed.
+	 * 
+	 * Nested archive is written to its parent archive, so parent has to be
+	 * committed too.
+	 * 
+	 * Archive must not be read by other threads during commit.
+	 */
+	public synchronized void commit() throws IOException {
+		if (changes == null) {
+			return;
+		}
+		try {
+			changes.commit();
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Forget all changes which are not yet committed.
+	 */
+	public synchronized void rollback() {
+		if (changes != null) {
+			changes.clear();
+		}
+	}
+
+	/**
+	 * Drop index, so archive is read again when needed.
+	 */
+	private synchronized void reset() {
+		initialized = false;
+		table = null;
+		directory = null;
+		buffer = null;
+		synchronized (archives) {
+			archives.clear();
+		}
+		Path path = getSeekablePath();
+		ZipIndexCache cache = ZipIndexCache.getDefault();
+		if (path != null && cache != null) {
+			cache.invalidate(path);
+		}
+	}
+
+	VFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Read index if it is not read yet, or again if nested archive was
+	 * changed by commit of its parent archive.
+	 */
+	private void checkInit() {
+		if (initialized && file instanceof VZipFileEntry && ((VZipFileEntry) file).getVersion() != fileVersion) {
+			reset();
+		}
+		if (!initialized) {
+			init();
+		}
+	}
+
+	ZipDirectory getDirectory() {
+		checkInit();
+		return directory;
+	}
+
+	ByteBuffer getBuffer() {
+		checkInit();
+		return buffer;
+	}
+
+	EntryTable getTable() {
+		checkInit();
+		return table;
+	}
+
+	VFile get(int node, String s) {
+		int child = table.child(node, s);
+		if (child == EntryTable.NONE) {
+			return null;
+		}
+		return getNode(child);
+	}
+
+	String[] list(int node) {
+		String[] names = new String[table.getChildCount(node)];
+		int i = 0;
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			names[i++] = table.getName(c);
+		}
+		return names;
+	}
+
+	VFile[] listFiles(int node) {
+		VFile[] files = new VFile[table.getChildCount(node)];
+		int i = 0;
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			files[i++] = getNode(c);
+		}
+		return files;
+	}
+
+	String[] list(int node, VFilenameFilter filter) {
+		VFile dir = getNode(node);
+		ArrayList<String> v = new ArrayList<>();
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			String name = table.getName(c);
+			if (filter.accept(dir, name)) {
+				v.add(name);
 			}
-			entry.add(path, 1, zipIndex, size);
 		}
+		String[] names = new String[v.size()];
+		return v.toArray(names);
+	}
+
+	VFile[] listFiles(int node, VFilenameFilter filter) {
+		VFile dir = getNode(node);
+		ArrayList<VFile> v = new ArrayList<>();
+		for (int c = table.getFirstChild(node); c != EntryTable.NONE; c = table.getNextSibling(c)) {
+			if (filter.accept(dir, table.getName(c))) {
+				v.add(getNode(c));
+			}
+		}
+		VFile[] entries = new VFile[v.size()];
+		return v.toArray(entries);
+	}
+
+	/**
+	 * Find entry by its full path inside of archive (e.g. "a/b/c/d.class").
+	 * Unlike chain of get() calls this needs just one hash lookup.
+	 * 
+	 * @return VFile or null if there is no such entry
+	 */
+	public VFile resolve(String path) {
+		checkInit();
+		int node = table.find(path);
+		if (node == EntryTable.NONE) {
+			return null;
+		}
+		return getNode(node);
 	}
 
 	synchronized void init() {
-		initialized = true;
+		if (initialized) {
+			return;
+		}
+		try {
+			if (file instanceof VZipFileEntry) {
+				fileVersion = ((VZipFileEntry) file).getVersion();
+				try {
+					initFromSpool();
+					return;
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					directory = null;
+				}
+			}
+			Path archive = getSeekablePath();
+			if (archive != null) {
+				try {
+					initFromDirectory(archive);
+					return;
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					directory = null;
+					buffer = null;
+				}
+			}
+			initFromStream();
+		} finally {
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Sequential scan, used if archive can't be read with random access.
+	 */
+	private void initFromStream() {
+		table = new EntryTable(0);
 		ZipInputStream zip = null;
 		try {
 			zip = new ZipInputStream(getInputStream());
 			ZipEntry entry = null;
 			int zipIndex = 0;
 			while (true) {
-				if (zip.available() == 0) {
-					break;
-				}
 				entry = zip.getNextEntry();
 				if (entry == null) {
 					break;
 				}
-				String name = entry.getName();
-				String[] path = name.split("/");
-				System.out.println(name + " " + zipIndex);
-				add(path, zipIndex++, entry.getSize());
+				// sizes and crc may be in data descriptor after entry data
+				zip.closeEntry();
+				table.add(entry.getName(), zipIndex++, entry.getMethod(), entry.getCrc(), entry.getCompressedSize(),
+						entry.getSize(), -1, entry.getTime());
 			}
 
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			table.trim();
 			if (zip != null) {
 				try {
 					zip.close();
@@ -128,13 +396,104 @@ public class VZipFile implements VFile {
 		}
 	}
 
+	private void initFromDirectory(Path path) throws IOException {
+		ZipIndexCache cache = ZipIndexCache.getDefault();
+		ZipDirectory cached = cache != null ? cache.load(path) : null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (mapped && size <= Integer.MAX_VALUE) {
+				// mapping stays valid after channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				directory = cached != null ? cached : ZipDirectory.read(buffer);
+			} else {
+				directory = cached != null ? cached : ZipDirectory.read(channel);
+			}
+		}
+		if (cache != null && cached == null) {
+			cache.store(path, directory);
+		}
+		table = directory.table;
+	}
+
+	/**
+	 * Nested archive is spooled once and then read like a top level archive.
+	 */
+	private void initFromSpool() throws IOException {
+		ZipSpool spool = ZipSpool.acquire(file);
+		try {
+			ByteBuffer b = spool.getBuffer();
+			if (b != null) {
+				directory = ZipDirectory.read(b);
+			} else {
+				try (FileChannel channel = spool.openChannel()) {
+					directory = ZipDirectory.read(channel);
+				}
+			}
+		} finally {
+			spool.release();
+		}
+		table = directory.table;
+	}
+
+	/**
+	 * If true, new VZipFiles will memory-map their archive (if it is a local
+	 * file not larger than 2 GB).
+	 */
+	public static void setMappedByDefault(boolean b) {
+		mappedByDefault = b;
+	}
+
+	public static boolean isMappedByDefault() {
+		return mappedByDefault;
+	}
+
+	/**
+	 * If true, archive is memory-mapped and entries are served from
+	 * MappedByteBuffer. Has no effect after archive was initialized.
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @return path of archive if it can be read with random access, or null
+	 */
+	Path getSeekablePath() {
+		if (file instanceof JFile) {
+			Path path = file.toPath();
+			if (path != null && Files.isRegularFile(path)) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Create empty archive if it does not exist.
+	 */
 	@Override
 	public void create() throws IOException {
+		if (file.exists()) {
+			return;
+		}
+		ZipWriter writer = new ZipWriter(file.getOutputStream(), 0);
+		writer.close();
+		reset();
 	}
 
+	/**
+	 * Delete archive. Changes which are not yet committed are lost.
+	 */
 	@Override
-	public boolean delete() {
-		return false;
+	public synchronized boolean delete() {
+		rollback();
+		boolean b = file.delete();
+		reset();
+		return b;
 	}
 
 	@Override
@@ -144,14 +503,37 @@ public class VZipFile implements VFile {
 
 	@Override
 	public VFile get(String s) {
-		if (!initialized) {
-			init();
-		}
-		return map.get(s);
+		checkInit();
+		return get(EntryTable.ROOT, s);
 	}
 
-	InputStream getZipEntryInputStream(int zipEntryIndex) throws IOException {
-		return new ZipEntryInputStream(getInputStream(), zipEntryIndex);
+	InputStream getZipEntryInputStream(int node) throws IOException {
+		checkInit();
+		if (buffer != null) {
+			return directory.getInputStream(buffer, node);
+		}
+		if (directory != null && file instanceof VZipFileEntry) {
+			ZipSpool spool = ZipSpool.acquire(file);
+			try {
+				return spool.getInputStream(directory, node);
+			} catch (IOException ex) {
+				spool.release();
+				throw ex;
+			}
+		}
+		if (directory != null) {
+			FileChannel channel = FileChannel.open(getSeekablePath(), StandardOpenOption.READ);
+			try {
+				return directory.getInputStream(channel, node, true);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+		if (table.isImplied(node)) {
+			throw new IOException("not an entry: " + table.getPath(node));
+		}
+		return new ZipEntryInputStream(getInputStream(), table.getIndex(node));
 	}
 
 	@Override
@@ -226,66 +608,26 @@ public class VZipFile implements VFile {
 
 	@Override
 	public String[] list() {
-		if (!initialized) {
-			init();
-		}
-		VFile[] entries = new VFile[children.size()];
-		children.toArray(entries);
-		String[] names = new String[entries.length];
-		for (int i = 0; i < names.length; i++) {
-			names[i] = entries[i].getName();
-		}
-		return names;
+		checkInit();
+		return list(EntryTable.ROOT);
 	}
 
 	@Override
 	public String[] list(VFilenameFilter filter) {
-		if (!initialized) {
-			init();
-		}
-		ArrayList<VFile> v = new ArrayList<>();
-		Enumeration<VFile> elements = new SafeIterator<>(children.iterator());
-		while (elements.hasMoreElements()) {
-			VFile f = elements.nextElement();
-			if (filter.accept(f.getParentFile(), f.getName())) {
-				v.add(f);
-			}
-		}
-		VFile[] entries = new VFile[v.size()];
-		v.toArray(entries);
-		String[] names = new String[entries.length];
-		for (int i = 0; i < names.length; i++) {
-			names[i] = entries[i].getName();
-		}
-		return names;
+		checkInit();
+		return list(EntryTable.ROOT, filter);
 	}
 
 	@Override
 	public VFile[] listFiles() {
-		if (!initialized) {
-			init();
-		}
-		VFile[] entries = new VFile[children.size()];
-		children.toArray(entries);
-		return entries;
+		checkInit();
+		return listFiles(EntryTable.ROOT);
 	}
 
 	@Override
 	public VFile[] listFiles(VFilenameFilter filter) {
-		if (!initialized) {
-			init();
-		}
-		ArrayList<VFile> v = new ArrayList<>();
-		Enumeration<VFile> elements = new SafeIterator<>(children.iterator());
-		while (elements.hasMoreElements()) {
-			VFile f = elements.nextElement();
-			if (filter.accept(f.getParentFile(), f.getName())) {
-				v.add(f);
-			}
-		}
-		VFile[] entries = new VFile[v.size()];
-		v.toArray(entries);
-		return entries;
+		checkInit();
+		return listFiles(EntryTable.ROOT, filter);
 	}
 
 	@Override
@@ -362,9 +704,17 @@ public class VZipFile implements VFile {
 		return getAbsolutePath().toLowerCase(Locale.ENGLISH).hashCode() ^ 1234321;
 	}
 
+	/**
+	 * Replace whole archive. Changes which are not yet committed are lost.
+	 */
 	@Override
-	public void writeFile(InputStream in) throws IOException {
-
+	public synchronized void writeFile(InputStream in) throws IOException {
+		rollback();
+		try {
+			file.writeFile(in);
+		} finally {
+			reset();
+		}
 	}
 
 	@Override
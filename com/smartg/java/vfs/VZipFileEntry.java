@@ -30,104 +30,130 @@
 
 package com.smartg.java.vfs;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.Hashtable;
 
 import javax.swing.Icon;
-import javax.swing.filechooser.FileSystemView;
 
 import com.smartg.java.util.ArrayIterator;
-import com.smartg.java.util.SafeIterator;
 
-public class VZipFileEntry implements VFile {
+/**
+ * Entry (or implied directory) of zip archive. VZipFileEntry is just a view
+ * of one node of archive's EntryTable, so it is created on demand and holds
+ * no other data.
+ * 
+ * After VZipFile.commit() archive is read again, so node is found again by
+ * path in the new table. If entry was removed, exists() returns false.
+ */
+public class VZipFileEntry implements VFile, RangeFile {
 
-    static final FileSystemView fileSystemView = FileSystemView.getFileSystemView();
+    final VZipFile root;
 
-    VFile parent;
-    int zipEntryIndex;
-    String name;
-    VZipFile root;
-    long size;
+    /**
+     * table which node belongs to
+     */
+    private EntryTable table;
+    private int node;
+    private String removedPath;
+
+    /**
+     * incremented when content of entry was changed by commit
+     */
+    private int version;
 
-    Hashtable<String, VFile> ht = new Hashtable<String, VFile>();
-    ArrayList<VFile> children = new ArrayList<VFile>();
+    String name;
 
-    VZipFileEntry(VZipFile root, VFile parent, String name, int zipEntryIndex, long size) {
+    VZipFileEntry(VZipFile root, int node) {
 	this.root = root;
-	this.parent = parent;
-	this.name = name;
-	this.zipEntryIndex = zipEntryIndex;
-	this.size = size;
+	this.table = root.getTable();
+	this.node = node;
+    }
+
+    /**
+     * @return node of this entry in current table of archive or
+     *         EntryTable.NONE if entry was removed
+     */
+    synchronized int node() {
+	EntryTable current = root.getTable();
+	if (current != table) {
+	    if (node != EntryTable.NONE) {
+		String path = table.getPath(node);
+		int n = current.find(path);
+		if (n == EntryTable.NONE) {
+		    removedPath = path;
+		    version++;
+		} else if (current.getCrc(n) != table.getCrc(node) || current.getSize(n) != table.getSize(node)
+			|| current.getMethod(n) != table.getMethod(node)
+			|| current.isDirectory(n) != table.isDirectory(node)) {
+		    version++;
+		}
+		node = n;
+	    } else if ((node = current.find(removedPath)) != EntryTable.NONE) {
+		// entry was added again
+		removedPath = null;
+		version++;
+	    }
+	    table = current;
+	}
+	return node;
     }
 
-    public void create() throws IOException {
-
+    /**
+     * @return counter of changes of entry content, used by nested archives
+     */
+    int getVersion() {
+	node();
+	synchronized (this) {
+	    return version;
+	}
     }
 
-    public boolean delete() {
-	return false;
+    EntryTable table() {
+	return root.getTable();
     }
 
-    public boolean exists() {
-	return true;
+    /**
+     * @return full path of entry inside of archive
+     */
+    String getPath() {
+	int n = node();
+	synchronized (this) {
+	    return n == EntryTable.NONE ? removedPath : table.getPath(n);
+	}
     }
 
-    public VFile get(String s) {
-	return ht.get(s);
+    public void create() throws IOException {
+
     }
 
-    void add(String[] path, int pathIndex, int zipIndex, long size) {
-	if (path.length == 0 || pathIndex >= path.length) {
-	    return;
-	}
-	String key = path[pathIndex];
-
-	if (pathIndex == path.length - 1) {
-	    VZipFileEntry entry = (VZipFileEntry) ht.get(key);
-	    if (entry == null) {
-		entry = new VZipFileEntry(root, this, key, zipIndex, size);
-		String name = entry.getName().toUpperCase();
-		if (name.endsWith(".ZIP") || name.endsWith(".JAR")) {
-		    VZipFile zip = new VZipFile(entry);
-		    ht.put(key, zip);
-		    children.add(zip);
-		} else {
-		    ht.put(key, entry);
-		    children.add(entry);
-		}
-	    } else {
-		entry.setSize(size);
-		entry.setZipEntryIndex(zipIndex);
-	    }
-	} else {
-	    VZipFileEntry entry = (VZipFileEntry) ht.get(path[pathIndex]);
-	    if (entry == null) {
-		entry = new VZipFileEntry(root, this, key, -1, -1);
-		ht.put(key, entry);
-		children.add(entry);
-	    }
-	    entry.add(path, pathIndex + 1, zipIndex, size);
+    /**
+     * Remove entry from archive. Change is written on VZipFile.commit().
+     */
+    public boolean delete() {
+	try {
+	    return root.remove(getPath());
+	} catch (IOException ex) {
+	    ex.printStackTrace();
+	    return false;
 	}
     }
 
-    void setZipEntryIndex(int index) {
-	this.zipEntryIndex = index;
+    public boolean exists() {
+	return node() != EntryTable.NONE;
     }
 
-    void setSize(long size2) {
-	this.size = size2;
+    public VFile get(String s) {
+	int n = node();
+	return n == EntryTable.NONE ? null : root.get(n, s);
     }
 
     public String getAbsolutePath() {
-	if (parent != null) {
-	    return parent.getAbsolutePath() + "/" + getName();
-	}
-	return "/" + getName();
+	return root.getAbsolutePath() + "/" + getPath();
     }
     
     public Path toPath() {
@@ -142,31 +168,64 @@ public class VZipFileEntry implements VFile {
 	if (isDirectory()) {
 	    VFile parentFile = root.getParentFile();
 	    if (parentFile instanceof JFile) {
-		JFile jFile = (JFile) parentFile;
-		return fileSystemView.getSystemIcon(jFile.f);
+		return parentFile.getIcon();
 	    }
 	}
 	return null;
     }
 
     public InputStream getInputStream() throws IOException {
-	return root.getZipEntryInputStream(zipEntryIndex);
+	int n = node();
+	if (n == EntryTable.NONE) {
+	    throw new FileNotFoundException(getAbsolutePath());
+	}
+	return root.getZipEntryInputStream(n);
+    }
+
+    /**
+     * Data of STORED entries is read directly at offset, DEFLATED entries are
+     * inflated from start.
+     */
+    public InputStream openRange(long offset, long length) throws IOException {
+	return VfsUtil.skip(getInputStream(), offset, length);
+    }
+
+    public int read(long offset, ByteBuffer dst) throws IOException {
+	InputStream in = openRange(offset, dst.remaining());
+	try {
+	    return VfsUtil.read(in, dst);
+	} finally {
+	    in.close();
+	}
     }
 
     public String getName() {
+	if (name == null) {
+	    String path = getPath();
+	    name = path.substring(path.lastIndexOf('/') + 1);
+	}
 	return name;
     }
 
+    /**
+     * New content of entry is written to archive on VZipFile.commit().
+     */
     public OutputStream getOutputStream() throws IOException {
-	return null;
+	return root.getEntryOutputStream(getPath());
     }
 
     public String getParent() {
-	return parent.getName();
+	return getParentFile().getName();
     }
 
     public VFile getParentFile() {
-	return parent;
+	int n = node();
+	if (n == EntryTable.NONE) {
+	    int slash = removedPath.lastIndexOf('/');
+	    VFile parent = slash < 0 ? null : root.resolve(removedPath.substring(0, slash));
+	    return parent != null ? parent : root;
+	}
+	return root.getNode(table().getParent(n));
     }
 
     public int getPos() {
@@ -174,67 +233,69 @@ public class VZipFileEntry implements VFile {
     }
 
     public boolean isDirectory() {
-	return children.size() != 0;
+	int n = node();
+	return n != EntryTable.NONE && table().isDirectory(n);
     }
 
     public boolean isHidden() {
 	return false;
     }
 
+    /**
+     * @return modification time of entry from central directory. Implied
+     *         directories and entries without time get archive's time.
+     */
     public long lastModified() {
-	return root.lastModified();
+	int n = node();
+	if (n == EntryTable.NONE) {
+	    return 0L;
+	}
+	long time = table().getTime(n);
+	if (time == -1) {
+	    return root.lastModified();
+	}
+	return time;
+    }
+
+    /**
+     * Get attributes of this entry. All values are taken from central
+     * directory, entry data is never read.
+     * 
+     * @return attributes or null if entry was removed
+     */
+    public ZipEntryAttributes getAttributes() {
+	int n = node();
+	if (n == EntryTable.NONE) {
+	    return null;
+	}
+	EntryTable table = table();
+	return new ZipEntryAttributes(lastModified(), table.getSize(n), table.getCompressedSize(n),
+		table.getCrc(n), table.getMethod(n), isDirectory(), n);
     }
 
     public long length() {
-	return size;
+	int n = node();
+	return n == EntryTable.NONE ? 0L : table().getSize(n);
     }
 
     public String[] list() {
-	VFile[] entries = new VFile[children.size()];
-	children.toArray(entries);
-	String[] names = new String[entries.length];
-	for (int i = 0; i < names.length; i++) {
-	    names[i] = entries[i].getName();
-	}
-	return names;
+	int n = node();
+	return n == EntryTable.NONE ? null : root.list(n);
     }
 
     public String[] list(VFilenameFilter filter) {
-	ArrayList<VFile> v = new ArrayList<VFile>();
-	Enumeration<VFile> elements = new SafeIterator<VFile>(children.iterator());
-	while (elements.hasMoreElements()) {
-	    VFile f = elements.nextElement();
-	    if (filter.accept(f.getParentFile(), f.getName())) {
-		v.add(f);
-	    }
-	}
-	VFile[] entries = new VFile[v.size()];
-	v.toArray(entries);
-	String[] names = new String[entries.length];
-	for (int i = 0; i < names.length; i++) {
-	    names[i] = entries[i].getName();
-	}
-	return names;
+	int n = node();
+	return n == EntryTable.NONE ? null : root.list(n, filter);
     }
 
     public VFile[] listFiles() {
-	VFile[] entries = new VFile[children.size()];
-	children.toArray(entries);
-	return entries;
+	int n = node();
+	return n == EntryTable.NONE ? null : root.listFiles(n);
     }
 
     public VFile[] listFiles(VFilenameFilter filter) {
-	ArrayList<VFile> v = new ArrayList<VFile>();
-	Enumeration<VFile> elements = new SafeIterator<VFile>(children.iterator());
-	while (elements.hasMoreElements()) {
-	    VFile f = elements.nextElement();
-	    if (filter.accept(f.getParentFile(), f.getName())) {
-		v.add(f);
-	    }
-	}
-	VFile[] entries = new VFile[v.size()];
-	v.toArray(entries);
-	return entries;
+	int n = node();
+	return n == EntryTable.NONE ? null : root.listFiles(n, filter);
     }
 
     public boolean mkdir() {
@@ -273,7 +334,7 @@ public class VZipFileEntry implements VFile {
 	if (obj instanceof VZipFileEntry) {
 	    VZipFileEntry entry = (VZipFileEntry) obj;
 	    if (root.equals(entry.root)) {
-		return zipEntryIndex == entry.zipEntryIndex;
+		return getPath().equals(entry.getPath());
 	    }
 	}
 	return false;
@@ -285,11 +346,14 @@ public class VZipFileEntry implements VFile {
 
     @Override
     public int hashCode() {
-	return name.hashCode() * zipEntryIndex;
+	return root.hashCode() * 31 + getPath().hashCode();
     }
 
+    /**
+     * New content of entry is written to archive on VZipFile.commit().
+     */
     public void writeFile(InputStream in) throws IOException {
-	
+	root.put(getPath(), in);
     }
     
     public Enumeration<VFile> files() {
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor for background work of VFS (listing, async operations,
+ * extraction etc.) with queue metrics. It wraps virtual thread per task
+ * executor (Java 21+) or thread pool.
+ * 
+ * Default executor (getDefault()) can be replaced with setDefault(), it is
+ * used by AsyncVFile, FileListModel and FileProcessor.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class VfsExecutor implements Executor {
+
+	private static volatile VfsExecutor defaultExecutor;
+
+	private final String name;
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxQueued = new AtomicInteger();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name of executor (and prefix of thread names)
+	 * @param executor
+	 *            executor which runs tasks
+	 */
+	public VfsExecutor(String name, ExecutorService executor) {
+		this(name, executor, false);
+	}
+
+	private VfsExecutor(String name, ExecutorService executor, boolean virtual) {
+		this.name = name;
+		this.executor = executor;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Create executor for I/O bound tasks: virtual thread per task if
+	 * available, otherwise pool of at most maxThreads daemon threads.
+	 */
+	public static VfsExecutor create(String name, int maxThreads) {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new VfsExecutor(name, (ExecutorService) m.invoke(null), true);
+		} catch (Exception ex) {
+			// Java < 21
+		}
+		return createPool(name, maxThreads);
+	}
+
+	/**
+	 * Create pool of at most threads daemon threads (for CPU bound tasks, or
+	 * if count of threads should be limited). Idle threads are stopped after
+	 * 30 seconds.
+	 */
+	public static VfsExecutor createPool(final String name, int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return new VfsExecutor(name, pool, false);
+	}
+
+	/**
+	 * @return default executor (created on first use)
+	 */
+	public static VfsExecutor getDefault() {
+		VfsExecutor e = defaultExecutor;
+		if (e == null) {
+			synchronized (VfsExecutor.class) {
+				e = defaultExecutor;
+				if (e == null) {
+					e = create("vfs", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+					defaultExecutor = e;
+				}
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Replace default executor. Previous default executor is not shut down.
+	 */
+	public static void setDefault(VfsExecutor e) {
+		defaultExecutor = e;
+	}
+
+	/**
+	 * @return executor which runs tasks one by one (in order of submission)
+	 *         on supplied executor
+	 */
+	public static Executor serial(Executor executor) {
+		return new SerialExecutor(executor);
+	}
+
+	public void execute(final Runnable task) {
+		submitted.incrementAndGet();
+		int q = queued.incrementAndGet();
+		int max = maxQueued.get();
+		while (q > max && !maxQueued.compareAndSet(max, q)) {
+			max = maxQueued.get();
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					try {
+						task.run();
+					} catch (RuntimeException ex) {
+						failed.incrementAndGet();
+						throw ex;
+					} catch (Error ex) {
+						failed.incrementAndGet();
+						throw ex;
+					} finally {
+						active.decrementAndGet();
+						completed.incrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			queued.decrementAndGet();
+			submitted.decrementAndGet();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Submit task. Exception thrown by task is available from returned
+	 * FutureTask.
+	 */
+	public <T> FutureTask<T> submit(Callable<T> task) {
+		FutureTask<T> f = new FutureTask<T>(task);
+		execute(f);
+		return f;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if tasks run in virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return count of submitted tasks which are not started yet
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return max queue depth since creation (or resetMaxQueueDepth())
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueued.get();
+	}
+
+	public void resetMaxQueueDepth() {
+		maxQueued.set(queued.get());
+	}
+
+	/**
+	 * @return count of running tasks
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return count of tasks which threw exception (not counting tasks
+	 *         submitted as Callable, their exceptions are kept by Future)
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return underlying ExecutorService (tasks executed with it directly are
+	 *         not counted)
+	 */
+	public ExecutorService getExecutorService() {
+		return executor;
+	}
+
+	/**
+	 * @return ExecutorService which runs tasks with execute() of this
+	 *         executor, so they are counted (e.g. for
+	 *         AsynchronousFileChannel)
+	 */
+	public ExecutorService asExecutorService() {
+		return new AbstractExecutorService() {
+			public void execute(Runnable command) {
+				VfsExecutor.this.execute(command);
+			}
+
+			public void shutdown() {
+				executor.shutdown();
+			}
+
+			public List<Runnable> shutdownNow() {
+				return executor.shutdownNow();
+			}
+
+			public boolean isShutdown() {
+				return executor.isShutdown();
+			}
+
+			public boolean isTerminated() {
+				return executor.isTerminated();
+			}
+
+			public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+				return executor.awaitTermination(timeout, unit);
+			}
+		};
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public void shutdownNow() {
+		executor.shutdownNow();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public String toString() {
+		return name + (virtual ? " (virtual)" : "") + " queued=" + getQueueDepth() + " max=" + getMaxQueueDepth() + " active="
+				+ getActiveCount() + " completed=" + getCompletedCount() + " failed=" + getFailedCount();
+	}
+
+	static class SerialExecutor implements Executor {
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private final Executor executor;
+		private Runnable active;
+
+		SerialExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		public synchronized void execute(final Runnable r) {
+			tasks.add(new Runnable() {
+				public void run() {
+					try {
+						r.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (active == null) {
+				scheduleNext();
+			}
+		}
+
+		synchronized void scheduleNext() {
+			active = tasks.poll();
+			if (active != null) {
+				try {
+					executor.execute(active);
+				} catch (RuntimeException ex) {
+					// e.g. RejectedExecutionException - task is dropped, next
+					// execute() schedules remaining tasks
+					active = null;
+					throw ex;
+				}
+			}
+		}
+	}
+}
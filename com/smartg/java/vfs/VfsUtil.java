@@ -39,6 +39,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Logger;
 
 public class VfsUtil {
@@ -193,6 +200,14 @@ public class VfsUtil {
     }
 
     public static void copyDirectory(VFile src, VFile dst) {
+	if (src instanceof VZipFile) {
+	    try {
+		((VZipFile) src).extract(dst, Runtime.getRuntime().availableProcessors(), null);
+	    } catch (IOException ex) {
+		ex.printStackTrace();
+	    }
+	    return;
+	}
 	dst.mkdirs();
 	VFile[] list = src.listFiles();
 
@@ -206,6 +221,11 @@ public class VfsUtil {
 	}
     }
 
+    /**
+     * Copy file. If both files are ChannelFiles (e.g. JFile to JFile) data is
+     * copied with FileChannel.transferTo() (without copying to java heap),
+     * other channels with small pooled heap buffer (see copy()).
+     */
     public static boolean copyFile(VFile src, VFile dst) {
 	if (src == null || dst == null) {
 	    return false;
@@ -213,7 +233,26 @@ public class VfsUtil {
 	Logger l = Logger.getLogger("com.imagero.java.vfs");
 	l.info("Copy file: " + src.getName() + " from " + src.getParent() + " to " + dst.getParent());
 	try {
-	    dst.writeFile(src.getInputStream());
+	    if (src instanceof ChannelFile && dst instanceof ChannelFile) {
+		ReadableByteChannel in = ((ChannelFile) src).getReadableChannel();
+		try {
+		    WritableByteChannel out = ((ChannelFile) dst).getWritableChannel();
+		    try {
+			copy(in, out);
+		    } finally {
+			close(out);
+		    }
+		} finally {
+		    close(in);
+		}
+	    } else {
+		InputStream in = src.getInputStream();
+		try {
+		    dst.writeFile(in);
+		} finally {
+		    close(in);
+		}
+	    }
 	    return true;
 	} catch (Throwable t) {
 	    t.printStackTrace();
@@ -221,6 +260,163 @@ public class VfsUtil {
 	return false;
     }
 
+    /**
+     * Copy all remaining data from in to out. FileChannel source is
+     * transferred directly to out (sendfile/copy_file_range where the OS
+     * supports it), other channels are copied with pooled buffer (see
+     * InflaterPool.borrowBuffer()).
+     * 
+     * @return count of copied bytes
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+	long count = 0;
+	if (in instanceof FileChannel) {
+	    FileChannel fc = (FileChannel) in;
+	    long pos = fc.position();
+	    long size = fc.size();
+	    while (pos < size) {
+		long n = fc.transferTo(pos, size - pos, out);
+		if (n <= 0) {
+		    break;
+		}
+		pos += n;
+		count += n;
+	    }
+	    fc.position(pos);
+	    if (pos >= size) {
+		return count;
+	    }
+	}
+	InflaterPool pool = InflaterPool.getDefault();
+	byte[] b = pool.borrowBuffer();
+	try {
+	    ByteBuffer buf = ByteBuffer.wrap(b);
+	    while (in.read(buf) >= 0 || buf.position() > 0) {
+		buf.flip();
+		count += out.write(buf);
+		buf.compact();
+	    }
+	} finally {
+	    pool.returnBuffer(b);
+	}
+	return count;
+    }
+
+    /**
+     * Open stream of part of file. RangeFiles read data at offset directly,
+     * other files are read from start and skipped to offset.
+     * 
+     * @param length
+     *            max count of bytes or -1 for the rest of file
+     */
+    public static InputStream openRange(VFile file, long offset, long length) throws IOException {
+	if (file instanceof RangeFile) {
+	    return ((RangeFile) file).openRange(offset, length);
+	}
+	return skip(file.getInputStream(), offset, length);
+    }
+
+    /**
+     * Read bytes of file starting at offset into dst (until dst is full or
+     * end of file is reached).
+     * 
+     * @return count of read bytes or -1 if offset is at or after end of file
+     */
+    public static int read(VFile file, long offset, ByteBuffer dst) throws IOException {
+	if (file instanceof RangeFile) {
+	    return ((RangeFile) file).read(offset, dst);
+	}
+	InputStream in = openRange(file, offset, dst.remaining());
+	try {
+	    return read(in, dst);
+	} finally {
+	    close(in);
+	}
+    }
+
+    /**
+     * Skip to offset and limit stream to length bytes (if length >= 0). If
+     * stream ends before offset, returned stream is empty.
+     */
+    static InputStream skip(InputStream in, long offset, long length) throws IOException {
+	try {
+	    TarIndex.skipFully(in, offset);
+	} catch (EOFException ex) {
+	    // empty stream
+	} catch (IOException ex) {
+	    close(in);
+	    throw ex;
+	}
+	if (length < 0) {
+	    return in;
+	}
+	return new VTarFile.EntryInputStream(in, length);
+    }
+
+    /**
+     * Read from stream until dst is full or stream ends.
+     * 
+     * @return count of read bytes or -1 if stream ended before first byte
+     */
+    static int read(InputStream in, ByteBuffer dst) throws IOException {
+	int count = 0;
+	byte[] buf = dst.hasArray() ? null : new byte[Math.min(dst.remaining(), 1 << 16)];
+	while (dst.hasRemaining()) {
+	    int read;
+	    if (buf == null) {
+		read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+		if (read > 0) {
+		    dst.position(dst.position() + read);
+		}
+	    } else {
+		read = in.read(buf, 0, Math.min(buf.length, dst.remaining()));
+		if (read > 0) {
+		    dst.put(buf, 0, read);
+		}
+	    }
+	    if (read < 0) {
+		break;
+	    }
+	    count += read;
+	}
+	if (count == 0 && dst.hasRemaining()) {
+	    return -1;
+	}
+	return count;
+    }
+
+    /**
+     * @return channel of ChannelFile or channel which wraps InputStream of file
+     */
+    public static ReadableByteChannel openReadableChannel(VFile file) throws IOException {
+	if (file instanceof ChannelFile) {
+	    return ((ChannelFile) file).getReadableChannel();
+	}
+	return Channels.newChannel(file.getInputStream());
+    }
+
+    /**
+     * @return seekable channel or null if file can't be read with random
+     *         access
+     */
+    public static SeekableByteChannel openSeekableChannel(VFile file) throws IOException {
+	if (file instanceof ChannelFile) {
+	    return ((ChannelFile) file).getSeekableChannel();
+	}
+	return null;
+    }
+
+    /**
+     * @return channel of ChannelFile or channel which wraps OutputStream of
+     *         file
+     */
+    public static WritableByteChannel openWritableChannel(VFile file) throws IOException {
+	if (file instanceof ChannelFile) {
+	    return ((ChannelFile) file).getWritableChannel();
+	}
+	return Channels.newChannel(file.getOutputStream());
+    }
+
     static void close(InputStream in) {
 	if (in == null) {
 	    return;
@@ -243,6 +439,17 @@ public class VfsUtil {
 	}
     }
 
+    static void close(Channel ch) {
+	if (ch == null) {
+	    return;
+	}
+	try {
+	    ch.close();
+	} catch (IOException ex) {
+
+	}
+    }
+
     public static String getProtocol(VFile file, String p) {
 	VFile parentFile = file.getParentFile();
 	String protocolName = file.getProtocolName();
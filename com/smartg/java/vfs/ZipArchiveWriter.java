@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Creates zip archive from VFile tree using several threads.
+ * 
+ * Every entry is deflated by worker thread into its own buffer. Buffers are
+ * then written to archive one by one in original order, so order of entries
+ * is the same regardless of count of threads. Archive bytes may differ: a
+ * buffered entry is STORED if it doesn't compress, and its sizes are in
+ * local header instead of data descriptor. Memory used by entries which are
+ * compressed but not yet written is limited with setMaxMemory(); entries
+ * which are larger than this limit (and all entries if there is only one
+ * thread) are deflated directly into archive.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class ZipArchiveWriter {
+
+	private final int parallelism;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private long maxMemory = 64L << 20;
+	private ProgressListener listener;
+
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * @param parallelism
+	 *            max count of threads which deflate entries at same time
+	 */
+	public ZipArchiveWriter(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @param level
+	 *            compression level (0-9)
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Set max size of data which is read or compressed but not yet written
+	 * to archive (64 MB by default).
+	 */
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Write all files of source to target archive. Entry names are relative
+	 * to source, source itself is not included.
+	 */
+	public void write(VFile source, VFile target) throws IOException {
+		write(source, target.getOutputStream());
+	}
+
+	/**
+	 * Write all files of source as zip archive to out. out is closed when
+	 * done.
+	 */
+	public void write(VFile source, OutputStream out) throws IOException {
+		List<Item> items = new ArrayList<Item>();
+		if (source.isDirectory()) {
+			collect(source, "", items);
+		} else {
+			items.add(new Item(source, source.getName()));
+		}
+		VfsExecutor executor = parallelism > 1 ? VfsExecutor.createPool("zip-write", parallelism) : null;
+		Job job = new Job(new ZipWriter(out, 0), items);
+		try {
+			for (Item item : items) {
+				if (item.directory) {
+					job.pending.add(new Pending(item, null, 0));
+					continue;
+				}
+				// file is held in memory twice: as read and as compressed
+				long cost = 2 * Math.max(0, item.length);
+				if (executor == null || item.length < 0 || cost > maxMemory) {
+					// too large to be buffered: write everything before it and deflate it directly
+					while (!job.pending.isEmpty()) {
+						job.writeNext();
+					}
+					job.writeDirect(item);
+					continue;
+				}
+				// wait until enough of memory is released
+				while (!job.pending.isEmpty()
+						&& (job.inFlight + cost > maxMemory || job.pending.size() >= parallelism * 64)) {
+					job.writeNext();
+				}
+				job.inFlight += cost;
+				job.pending.add(new Pending(item, executor.submit(new Compressor(item)), cost));
+			}
+			while (!job.pending.isEmpty()) {
+				job.writeNext();
+			}
+			job.writer.close();
+		} catch (IOException ex) {
+			for (Pending p : job.pending) {
+				if (p.future != null) {
+					p.future.cancel(true);
+				}
+			}
+			VfsUtil.close(out);
+			throw ex;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			Deflater def;
+			while ((def = deflaters.poll()) != null) {
+				def.end();
+			}
+		}
+	}
+
+	/**
+	 * State of one write() call. Used only by thread which called write().
+	 */
+	class Job {
+		final ZipWriter writer;
+		final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+		long inFlight;
+
+		final int filesTotal;
+		final long bytesTotal;
+		int filesDone;
+		long bytesDone;
+
+		Job(ZipWriter writer, List<Item> items) {
+			this.writer = writer;
+			writer.setLevel(level);
+			int files = 0;
+			long bytes = 0;
+			for (Item item : items) {
+				if (!item.directory) {
+					bytes += Math.max(0, item.length);
+					files++;
+				}
+			}
+			this.filesTotal = files;
+			this.bytesTotal = bytes;
+		}
+
+		/**
+		 * Write first pending entry (wait until it is compressed).
+		 */
+		void writeNext() throws IOException {
+			Pending p = pending.poll();
+			inFlight -= p.cost;
+			Item item = p.item;
+			if (item.directory) {
+				writer.writeDirectory(item.name + "/", item.time);
+				return;
+			}
+			Compressed c;
+			try {
+				c = p.future.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException(ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException(cause);
+			}
+			writer.writeRaw(item.name, c.method, c.crc, c.length, c.size, item.time,
+					new ByteBufferInputStream(ByteBuffer.wrap(c.data, 0, c.length)));
+			progress(item, c.size);
+		}
+
+		void writeDirect(Item item) throws IOException {
+			InputStream in = item.file.getInputStream();
+			try {
+				writer.write(item.name, item.time, in, item.length);
+			} finally {
+				VfsUtil.close(in);
+			}
+			progress(item, Math.max(0, item.length));
+		}
+
+		private void progress(Item item, long bytes) {
+			filesDone++;
+			bytesDone += bytes;
+			if (listener != null) {
+				listener.progress(item.file, filesDone, filesTotal, bytesDone, bytesTotal);
+			}
+		}
+	}
+
+	private static void collect(VFile dir, String prefix, List<Item> items) {
+		VFile[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (VFile f : files) {
+			// archives are stored as files
+			f = ArchiveTypes.unwrap(f);
+			String name = prefix + f.getName();
+			if (f.isDirectory()) {
+				items.add(new Item(f, name));
+				collect(f, name + "/", items);
+			} else {
+				items.add(new Item(f, name));
+			}
+		}
+	}
+
+	private Deflater borrowDeflater() {
+		Deflater def = deflaters.poll();
+		if (def == null) {
+			def = new Deflater(level, true);
+		}
+		return def;
+	}
+
+	private void returnDeflater(Deflater def) {
+		def.reset();
+		deflaters.add(def);
+	}
+
+	static class Item {
+		final VFile file;
+		final String name;
+		final boolean directory;
+		final long length;
+		final long time;
+
+		Item(VFile file, String name) {
+			file = ArchiveTypes.unwrap(file);
+			this.file = file;
+			this.name = name;
+			this.directory = file.isDirectory();
+			this.length = directory ? 0 : file.length();
+			this.time = file.lastModified();
+		}
+	}
+
+	static class Pending {
+		final Item item;
+		final Future<Compressed> future;
+		final long cost;
+
+		Pending(Item item, Future<Compressed> future, long cost) {
+			this.item = item;
+			this.future = future;
+			this.cost = cost;
+		}
+	}
+
+	static class Compressed {
+		int method;
+		long crc;
+		long size;
+		byte[] data;
+		int length;
+	}
+
+	/**
+	 * Reads file into memory and deflates it. If data can't be compressed,
+	 * entry is STORED.
+	 */
+	class Compressor implements Callable<Compressed> {
+		final Item item;
+
+		Compressor(Item item) {
+			this.item = item;
+		}
+
+		public Compressed call() throws IOException {
+			byte[] input = new byte[(int) item.length];
+			int size = 0;
+			InputStream in = item.file.getInputStream();
+			try {
+				int read;
+				while ((read = in.read(input, size, input.length - size)) > 0) {
+					size += read;
+					if (size == input.length) {
+						// file could grow since length() was called
+						if ((read = in.read()) < 0) {
+							break;
+						}
+						if (input.length >= Integer.MAX_VALUE - 8) {
+							throw new IOException("file is too large: " + item.name);
+						}
+						input = Arrays.copyOf(input, Math.max(input.length * 2, 4096));
+						input[size++] = (byte) read;
+					}
+				}
+			} finally {
+				VfsUtil.close(in);
+			}
+
+			Compressed c = new Compressed();
+			CRC32 crc = new CRC32();
+			crc.update(input, 0, size);
+			c.crc = crc.getValue();
+			c.size = size;
+
+			Deflater def = borrowDeflater();
+			try {
+				byte[] out = new byte[Math.max(64, size + size / 1000 + 64)];
+				def.setInput(input, 0, size);
+				def.finish();
+				int length = 0;
+				while (!def.finished() && length < size) {
+					length += def.deflate(out, length, out.length - length);
+				}
+				if (def.finished() && length < size) {
+					c.method = ZipEntry.DEFLATED;
+					c.data = out;
+					c.length = length;
+				} else {
+					c.method = ZipEntry.STORED;
+					c.data = input;
+					c.length = size;
+				}
+			} finally {
+				returnDeflater(def);
+			}
+			return c;
+		}
+	}
+}
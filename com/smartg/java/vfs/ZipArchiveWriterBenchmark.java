@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compares ZipArchiveWriter with ZipOutputStream.
+ * 
+ * Usage: ZipArchiveWriterBenchmark &lt;directory&gt; [threads] [runs]
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class ZipArchiveWriterBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ZipArchiveWriterBenchmark <directory> [threads] [runs]");
+			return;
+		}
+		VFile source = new JFile(new File(args[0]));
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		Path target = Files.createTempFile("bench", ".zip");
+		try {
+			for (int i = 0; i < runs; i++) {
+				long t = System.nanoTime();
+				writeZipOutputStream(source, Files.newOutputStream(target));
+				long zos = System.nanoTime() - t;
+				long zosSize = Files.size(target);
+
+				t = System.nanoTime();
+				new ZipArchiveWriter(threads).write(source, Files.newOutputStream(target));
+				long zaw = System.nanoTime() - t;
+				long zawSize = Files.size(target);
+
+				System.out.println("run " + (i + 1) + ": ZipOutputStream " + zos / 1000000 + " ms (" + zosSize
+						+ " bytes), ZipArchiveWriter[" + threads + "] " + zaw / 1000000 + " ms (" + zawSize + " bytes)");
+			}
+		} finally {
+			Files.deleteIfExists(target);
+		}
+	}
+
+	static void writeZipOutputStream(VFile source, OutputStream out) throws IOException {
+		ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(out, 1 << 16));
+		try {
+			write(zout, source, "", new byte[InflaterPool.BUFFER_SIZE]);
+		} finally {
+			zout.close();
+		}
+	}
+
+	private static void write(ZipOutputStream zout, VFile dir, String prefix, byte[] buf) throws IOException {
+		for (VFile f : dir.listFiles()) {
+			// archives are stored as files, like ZipArchiveWriter does
+			f = ArchiveTypes.unwrap(f);
+			String name = prefix + f.getName();
+			if (f.isDirectory()) {
+				zout.putNextEntry(new ZipEntry(name + "/"));
+				zout.closeEntry();
+				write(zout, f, name + "/", buf);
+				continue;
+			}
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(f.lastModified());
+			zout.putNextEntry(entry);
+			InputStream in = f.getInputStream();
+			try {
+				int read;
+				while ((read = in.read(buf)) > 0) {
+					zout.write(buf, 0, read);
+				}
+			} finally {
+				VfsUtil.close(in);
+			}
+			zout.closeEntry();
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Changes of VZipFile which are not yet written to archive.
+ * 
+ * Data of added and replaced entries is kept in temporary files until
+ * commit. On commit entries are written in one of two ways:
+ * <ul>
+ * <li>if entries are only added to local archive, they are appended after
+ * the last entry and central directory is rewritten (old central directory
+ * records are copied as is).</li>
+ * <li>otherwise archive is rebuilt into temporary file: untouched entries
+ * are copied without decompression, new entries are deflated. Local archive
+ * is then replaced with atomic move, any other archive with
+ * VFile.writeFile().</li>
+ * </ul>
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class ZipChangeSet {
+
+	private final VZipFile zip;
+
+	/** staged data by path, null for directories */
+	private final Map<String, Path> puts = new LinkedHashMap<String, Path>();
+	private final Set<String> removes = new HashSet<String>();
+
+	ZipChangeSet(VZipFile zip) {
+		this.zip = zip;
+	}
+
+	synchronized boolean isEmpty() {
+		return puts.isEmpty() && removes.isEmpty();
+	}
+
+	/**
+	 * Stage new content of entry.
+	 */
+	void put(String path, InputStream in) throws IOException {
+		OutputStream out = getOutputStream(path);
+		try {
+			byte[] buf = InflaterPool.getDefault().borrowBuffer();
+			try {
+				int read;
+				while ((read = in.read(buf)) > 0) {
+					out.write(buf, 0, read);
+				}
+			} finally {
+				InflaterPool.getDefault().returnBuffer(buf);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return OutputStream for new content of entry. Entry is staged when
+	 *         stream is closed.
+	 */
+	OutputStream getOutputStream(String path) throws IOException {
+		final String name = normalize(path);
+		checkFile(name);
+		final Path tmp = Files.createTempFile("vzip", ".tmp");
+		return new FilterOutputStream(Files.newOutputStream(tmp)) {
+			boolean closed;
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				super.close();
+				stage(name, tmp);
+			}
+		};
+	}
+
+	/**
+	 * Stage new directory entry.
+	 */
+	synchronized void mkdir(String path) throws IOException {
+		String name = normalize(path);
+		if (name.isEmpty()) {
+			throw new IOException("empty name");
+		}
+		Path old = puts.remove(name);
+		if (old != null) {
+			Files.deleteIfExists(old);
+		}
+		removes.remove(name);
+		puts.put(name, null);
+	}
+
+	private synchronized void stage(String name, Path data) throws IOException {
+		Path old = puts.put(name, data);
+		if (old != null) {
+			Files.deleteIfExists(old);
+		}
+	}
+
+	/**
+	 * Stage removal of entry. Directories are removed with all their
+	 * entries.
+	 * 
+	 * @return false if there is no such entry
+	 */
+	synchronized boolean remove(String path) throws IOException {
+		String name = normalize(path);
+		boolean found = false;
+		String prefix = name + "/";
+		for (Iterator<Map.Entry<String, Path>> it = puts.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Path> e = it.next();
+			if (e.getKey().equals(name) || e.getKey().startsWith(prefix)) {
+				if (e.getValue() != null) {
+					Files.deleteIfExists(e.getValue());
+				}
+				it.remove();
+				found = true;
+			}
+		}
+		if (zip.getTable().find(name) != EntryTable.NONE) {
+			removes.add(name);
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Forget all changes.
+	 */
+	synchronized void clear() {
+		for (Path p : puts.values()) {
+			if (p != null) {
+				try {
+					Files.deleteIfExists(p);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		puts.clear();
+		removes.clear();
+	}
+
+	private void checkFile(String name) throws IOException {
+		if (name.isEmpty()) {
+			throw new IOException("empty name");
+		}
+		EntryTable table = zip.getTable();
+		int node = table.find(name);
+		if (node != EntryTable.NONE && table.isDirectory(node)) {
+			throw new IOException("is a directory: " + name);
+		}
+	}
+
+	static String normalize(String path) {
+		String s = path.replace('\\', '/');
+		int start = 0;
+		int end = s.length();
+		while (start < end && s.charAt(start) == '/') {
+			start++;
+		}
+		while (end > start && s.charAt(end - 1) == '/') {
+			end--;
+		}
+		return s.substring(start, end);
+	}
+
+	/**
+	 * Write all changes to archive.
+	 */
+	synchronized void commit() throws IOException {
+		if (isEmpty()) {
+			return;
+		}
+		Path path = zip.getSeekablePath();
+		if (path != null && zip.getDirectory() != null && isAppendOnly()) {
+			append(path);
+		} else {
+			rebuild(path);
+		}
+		clear();
+	}
+
+	/**
+	 * @return true if there is nothing to remove or replace
+	 */
+	private boolean isAppendOnly() {
+		if (!removes.isEmpty()) {
+			return false;
+		}
+		EntryTable table = zip.getTable();
+		for (String name : puts.keySet()) {
+			int node = table.find(name);
+			if (node != EntryTable.NONE && !table.isImplied(node)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void append(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ZipDirectory.End end = ZipDirectory.readEnd(channel);
+			ByteBuffer cen = ZipDirectory.readFully(channel, end.cenOffset, end.getCenSize());
+			channel.position(end.cenOffset);
+			ZipWriter writer = new ZipWriter(Channels.newOutputStream(channel), end.cenOffset);
+			// every record is copied, also records with duplicate names
+			writer.copyCentral(cen, ZipDirectory.countRecords(cen));
+			writeStaged(writer);
+			writer.finish();
+			channel.truncate(writer.getPosition());
+		}
+	}
+
+	private void rebuild(Path path) throws IOException {
+		Path tmp;
+		if (path != null) {
+			tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		} else {
+			tmp = Files.createTempFile("vzip", ".tmp");
+		}
+		try {
+			try (ZipWriter writer = new ZipWriter(Files.newOutputStream(tmp), 0)) {
+				copyEntries(writer);
+				writeStaged(writer);
+			}
+			if (path != null) {
+				try {
+					Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException ex) {
+					Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} else {
+				try (InputStream in = Files.newInputStream(tmp)) {
+					zip.getFile().writeFile(in);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * @return for every node: true if node is removed or replaced
+	 */
+	private boolean[] getSkipped() {
+		EntryTable table = zip.getTable();
+		int count = table.getNodeCount();
+		boolean[] removed = new boolean[count];
+		for (String name : removes) {
+			int node = table.find(name);
+			if (node != EntryTable.NONE) {
+				removed[node] = true;
+			}
+		}
+		// parent node always precedes its children
+		for (int node = 1; node < count; node++) {
+			removed[node] |= removed[table.getParent(node)];
+		}
+		boolean[] skipped = removed;
+		for (String name : puts.keySet()) {
+			int node = table.find(name);
+			if (node != EntryTable.NONE) {
+				skipped[node] = true;
+			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * Copy entries which are not removed or replaced. Compressed data is
+	 * copied as is, without decompression, metadata is taken from original
+	 * central directory records.
+	 */
+	private void copyEntries(ZipWriter writer) throws IOException {
+		ZipDirectory directory = zip.getDirectory();
+		if (directory == null) {
+			copyEntriesSequential(writer);
+			return;
+		}
+		EntryTable table = zip.getTable();
+		int count = table.getNodeCount();
+		boolean[] skipped = getSkipped();
+
+		// keep order of entries in archive
+		long[] order = new long[table.getEntryCount()];
+		int n = 0;
+		for (int node = 1; node < count; node++) {
+			if (!table.isImplied(node) && !skipped[node]) {
+				order[n++] = ((long) table.getIndex(node) << 32) | node;
+			}
+		}
+		Arrays.sort(order, 0, n);
+
+		ByteBuffer buffer = zip.getBuffer();
+		FileChannel channel = null;
+		ZipSpool spool = null;
+		try {
+			if (buffer == null) {
+				Path path = zip.getSeekablePath();
+				if (path != null) {
+					channel = FileChannel.open(path, StandardOpenOption.READ);
+				} else {
+					spool = ZipSpool.acquire(zip.getFile());
+					buffer = spool.getBuffer();
+					if (buffer == null) {
+						channel = spool.openChannel();
+					}
+				}
+			}
+			ByteBuffer cen = buffer != null ? ZipDirectory.readCentral(buffer) : ZipDirectory.readCentral(channel);
+			int[] records = ZipDirectory.findRecords(cen);
+			for (int i = 0; i < n; i++) {
+				int node = (int) order[i];
+				int record = records[table.getIndex(node)];
+				long time = table.getTime(node);
+				if (time == -1) {
+					time = zip.lastModified();
+				}
+				ByteBuffer localExtra;
+				if (buffer != null) {
+					localExtra = directory.getLocalExtra(buffer, node);
+				} else {
+					localExtra = directory.getLocalExtra(channel, node);
+				}
+				if (table.isDirectory(node)) {
+					writer.copyDirectory(cen, record, localExtra, time);
+					continue;
+				}
+				InputStream in;
+				if (buffer != null) {
+					in = directory.getRawInputStream(buffer, node);
+				} else {
+					in = directory.getRawInputStream(channel, node, false);
+				}
+				try {
+					writer.copyRaw(cen, record, localExtra, table.getCrc(node), table.getCompressedSize(node),
+							table.getSize(node), time, in);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+			if (spool != null) {
+				spool.release();
+			}
+		}
+	}
+
+	/**
+	 * Archive without central directory is read once from start to end and
+	 * its entries are recompressed.
+	 */
+	private void copyEntriesSequential(ZipWriter writer) throws IOException {
+		EntryTable table = zip.getTable();
+		boolean[] skipped = getSkipped();
+		ZipInputStream zin = new ZipInputStream(zip.getInputStream());
+		try {
+			ZipEntry entry;
+			while ((entry = zin.getNextEntry()) != null) {
+				int node = table.find(entry.getName());
+				if (node == EntryTable.NONE || skipped[node]) {
+					continue;
+				}
+				long time = entry.getTime();
+				if (time == -1) {
+					time = zip.lastModified();
+				}
+				if (table.isDirectory(node)) {
+					writer.writeDirectory(table.getPath(node) + "/", time);
+				} else {
+					writer.write(table.getPath(node), time, zin, entry.getSize());
+				}
+			}
+		} finally {
+			zin.close();
+		}
+	}
+
+	private void writeStaged(ZipWriter writer) throws IOException {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Path> e : puts.entrySet()) {
+			Path data = e.getValue();
+			if (data == null) {
+				writer.writeDirectory(e.getKey() + "/", now);
+			} else {
+				try (InputStream in = Files.newInputStream(data)) {
+					writer.write(e.getKey(), Files.getLastModifiedTime(data).toMillis(), in, Files.size(data));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of zip archive. Read once from the end of archive, so
+ * entries can be opened by seeking directly to their local header instead
+ * of streaming archive from the beginning.
+ *
+ * @author Andrey Kuznetsov
+ */
+final class ZipDirectory {
+
+	static final int LOCSIG = 0x04034b50;
+	static final int CENSIG = 0x02014b50;
+	static final int ENDSIG = 0x06054b50;
+	static final int ZIP64_ENDSIG = 0x06064b50;
+	static final int ZIP64_LOCSIG = 0x07064b50;
+
+	static final int LOCHDR = 30;
+	static final int CENHDR = 46;
+	static final int ENDHDR = 22;
+	static final int ZIP64_ENDHDR = 56;
+	static final int ZIP64_LOCHDR = 20;
+
+	/** 32 bit size or offset which is stored in ZIP64 extra field */
+	static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+	static final int EXTID_ZIP64 = 0x0001;
+
+	/** max length of zip file comment */
+	static final int MAX_COMMENT = 0xFFFF;
+
+	final EntryTable table;
+
+	ZipDirectory(EntryTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * @return count of entries
+	 */
+	int size() {
+		return table.getEntryCount();
+	}
+
+	static ZipDirectory read(FileChannel channel) throws IOException {
+		End end = readEnd(channel);
+		ByteBuffer cen = readFully(channel, end.cenOffset, end.getCenSize());
+		return new ZipDirectory(parse(cen, end.count));
+	}
+
+	/**
+	 * Read raw central directory of archive.
+	 */
+	static ByteBuffer readCentral(FileChannel channel) throws IOException {
+		End end = readEnd(channel);
+		return readFully(channel, end.cenOffset, end.getCenSize());
+	}
+
+	static End readEnd(FileChannel channel) throws IOException {
+		long length = channel.size();
+		int tailLength = (int) Math.min(length, ENDHDR + MAX_COMMENT);
+		ByteBuffer tail = readFully(channel, length - tailLength, tailLength);
+		End end = End.find(tail, length);
+		if (end.zip64Offset >= 0) {
+			end.readZip64(readFully(channel, end.zip64Offset, ZIP64_ENDHDR), length);
+		}
+		return end;
+	}
+
+	/**
+	 * Read central directory from buffer which holds the whole archive (e.g.
+	 * MappedByteBuffer).
+	 */
+	static ZipDirectory read(ByteBuffer archive) throws IOException {
+		End end = readEnd(archive);
+		ByteBuffer cen = slice(archive, (int) end.cenOffset, end.getCenSize());
+		return new ZipDirectory(parse(cen, end.count));
+	}
+
+	/**
+	 * Get raw central directory from buffer which holds the whole archive.
+	 */
+	static ByteBuffer readCentral(ByteBuffer archive) throws IOException {
+		End end = readEnd(archive);
+		return slice(archive, (int) end.cenOffset, end.getCenSize());
+	}
+
+	private static End readEnd(ByteBuffer archive) throws IOException {
+		int length = archive.limit();
+		int tailLength = Math.min(length, ENDHDR + MAX_COMMENT);
+		ByteBuffer tail = slice(archive, length - tailLength, tailLength);
+		End end = End.find(tail, length);
+		if (end.zip64Offset >= 0) {
+			end.readZip64(slice(archive, (int) end.zip64Offset, ZIP64_ENDHDR), length);
+		}
+		return end;
+	}
+
+	/**
+	 * Parse central directory. Count from END header is used only as
+	 * capacity hint: archives with more than 65535 entries written without
+	 * ZIP64 records have wrong (truncated) count, so entries are read until
+	 * the whole central directory is consumed.
+	 */
+	private static EntryTable parse(ByteBuffer cen, long count) throws IOException {
+		EntryTable table = new EntryTable((int) Math.min(count, cen.limit() / CENHDR));
+		byte[] name = new byte[256];
+		int pos = 0;
+		int end = cen.limit();
+		for (int i = 0; pos < end; i++) {
+			if (pos + CENHDR > end || cen.getInt(pos) != CENSIG) {
+				throw new ZipException("invalid CEN header");
+			}
+			int method = cen.getShort(pos + 10) & 0xFFFF;
+			long time = EntryTable.DOS_TIME | (cen.getInt(pos + 12) & 0xFFFFFFFFL);
+			long crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+			long compressedSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			long offset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+			if (nameLength > name.length) {
+				name = new byte[nameLength];
+			}
+			cen.position(pos + CENHDR);
+			cen.get(name, 0, nameLength);
+			int extra = pos + CENHDR + nameLength;
+			if (extra + extraLength > end) {
+				throw new ZipException("invalid CEN header");
+			}
+			long mtime = getExtendedTime(cen, extra, extraLength);
+			if (mtime != -1) {
+				time = mtime;
+			}
+			if (size == ZIP64_MAGICVAL || compressedSize == ZIP64_MAGICVAL || offset == ZIP64_MAGICVAL) {
+				// ZIP64 extra field holds only values which are set to 0xFFFFFFFF, in this order
+				int zip64 = findExtra(cen, extra, extraLength, EXTID_ZIP64);
+				if (zip64 < 0) {
+					throw new ZipException("ZIP64 extra field not found: " + table.getEntryCount());
+				}
+				int zip64End = zip64 + (cen.getShort(zip64 - 2) & 0xFFFF);
+				if (size == ZIP64_MAGICVAL) {
+					size = readZip64Value(cen, zip64, zip64End);
+					zip64 += 8;
+				}
+				if (compressedSize == ZIP64_MAGICVAL) {
+					compressedSize = readZip64Value(cen, zip64, zip64End);
+					zip64 += 8;
+				}
+				if (offset == ZIP64_MAGICVAL) {
+					offset = readZip64Value(cen, zip64, zip64End);
+				}
+			}
+			table.add(name, 0, nameLength, i, method, crc, compressedSize, size, offset, time);
+
+			pos += CENHDR + nameLength + extraLength + commentLength;
+		}
+		table.trim();
+		return table;
+	}
+
+	/**
+	 * Count records of central directory. Unlike EntryTable.getEntryCount()
+	 * this counts also records with duplicate names.
+	 */
+	static long countRecords(ByteBuffer cen) throws IOException {
+		return findRecords(cen).length;
+	}
+
+	/**
+	 * @return position of every record in central directory, by index of
+	 *         entry (see EntryTable.getIndex())
+	 */
+	static int[] findRecords(ByteBuffer cen) throws IOException {
+		int[] positions = new int[16];
+		int count = 0;
+		int pos = 0;
+		int end = cen.limit();
+		while (pos < end) {
+			if (pos + CENHDR > end || cen.getInt(pos) != CENSIG) {
+				throw new ZipException("invalid CEN header");
+			}
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			positions[count++] = pos;
+			pos += CENHDR + (cen.getShort(pos + 28) & 0xFFFF) + (cen.getShort(pos + 30) & 0xFFFF)
+					+ (cen.getShort(pos + 32) & 0xFFFF);
+		}
+		return Arrays.copyOf(positions, count);
+	}
+
+	static final int EXTID_NTFS = 0x000a;
+	static final int EXTID_EXTT = 0x5455;
+
+	/**
+	 * Find extra field with given tag.
+	 * 
+	 * @return position of field data (after tag and size) or -1
+	 */
+	static int findExtra(ByteBuffer b, int off, int len, int id) {
+		int end = off + len;
+		while (off + 4 <= end) {
+			int tag = b.getShort(off) & 0xFFFF;
+			int size = b.getShort(off + 2) & 0xFFFF;
+			off += 4;
+			if (off + size > end) {
+				break;
+			}
+			if (tag == id) {
+				return off;
+			}
+			off += size;
+		}
+		return -1;
+	}
+
+	private static long readZip64Value(ByteBuffer b, int pos, int end) throws ZipException {
+		if (pos + 8 > end) {
+			throw new ZipException("invalid ZIP64 extra field");
+		}
+		long v = b.getLong(pos);
+		if (v < 0) {
+			throw new ZipException("invalid ZIP64 extra field");
+		}
+		return v;
+	}
+
+	/**
+	 * Read modification time from extra fields (extended timestamp or NTFS).
+	 * 
+	 * @return time in milliseconds or -1 if there is no such field
+	 */
+	static long getExtendedTime(ByteBuffer b, int off, int len) {
+		int end = off + len;
+		while (off + 4 <= end) {
+			int tag = b.getShort(off) & 0xFFFF;
+			int size = b.getShort(off + 2) & 0xFFFF;
+			off += 4;
+			if (off + size > end) {
+				break;
+			}
+			if (tag == EXTID_EXTT && size >= 5 && (b.get(off) & 0x1) != 0) {
+				return (b.getInt(off + 1) & 0xFFFFFFFFL) * 1000;
+			}
+			if (tag == EXTID_NTFS && size >= 32) {
+				// 4 bytes reserved, then attributes: tag 1 (size 24) holds mtime, atime, ctime
+				int pos = off + 4;
+				while (pos + 4 <= off + size) {
+					int attr = b.getShort(pos) & 0xFFFF;
+					int attrSize = b.getShort(pos + 2) & 0xFFFF;
+					if (attr == 0x0001 && attrSize >= 8) {
+						// 100 ns intervals since 1601-01-01
+						return b.getLong(pos + 4) / 10000 - 11644473600000L;
+					}
+					pos += 4 + attrSize;
+				}
+			}
+			off += size;
+		}
+		return -1;
+	}
+
+	/**
+	 * END header (end of central directory record). If archive has ZIP64 END
+	 * record, values from END header are replaced with values from ZIP64
+	 * record.
+	 */
+	static class End {
+		long count;
+		long cenSize;
+		long cenOffset;
+		/** position of ZIP64 END record or -1 */
+		long zip64Offset = -1;
+
+		static End find(ByteBuffer tail, long length) throws IOException {
+			int pos = -1;
+			for (int i = tail.limit() - ENDHDR; i >= 0; i--) {
+				if (tail.getInt(i) == ENDSIG) {
+					pos = i;
+					break;
+				}
+			}
+			if (pos < 0) {
+				throw new ZipException("END header not found");
+			}
+			End end = new End();
+			end.count = tail.getShort(pos + 10) & 0xFFFF;
+			end.cenSize = tail.getInt(pos + 12) & 0xFFFFFFFFL;
+			end.cenOffset = tail.getInt(pos + 16) & 0xFFFFFFFFL;
+
+			int loc = pos - ZIP64_LOCHDR;
+			if (loc >= 0 && tail.getInt(loc) == ZIP64_LOCSIG) {
+				end.zip64Offset = tail.getLong(loc + 8);
+				if (end.zip64Offset < 0 || end.zip64Offset + ZIP64_ENDHDR > length) {
+					throw new ZipException("invalid ZIP64 END locator");
+				}
+				return end;
+			}
+			if (end.cenOffset + end.cenSize > length) {
+				throw new ZipException("invalid END header");
+			}
+			return end;
+		}
+
+		void readZip64(ByteBuffer record, long length) throws IOException {
+			if (record.getInt(0) != ZIP64_ENDSIG) {
+				throw new ZipException("invalid ZIP64 END header");
+			}
+			count = record.getLong(32);
+			cenSize = record.getLong(40);
+			cenOffset = record.getLong(48);
+			if (count < 0 || cenSize < 0 || cenOffset < 0 || cenOffset + cenSize > length) {
+				throw new ZipException("invalid ZIP64 END header");
+			}
+		}
+
+		int getCenSize() throws ZipException {
+			if (cenSize > Integer.MAX_VALUE) {
+				throw new ZipException("central directory too large: " + cenSize);
+			}
+			return (int) cenSize;
+		}
+	}
+
+	static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.limit(position + length);
+		dup.position(position);
+		return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Compute position of entry data. Local header may have other extra field
+	 * length than central directory, so it has to be read.
+	 */
+	long getDataOffset(FileChannel channel, int node) throws IOException {
+		return dataOffset(readFully(channel, table.getOffset(node), LOCHDR), node);
+	}
+
+	long getDataOffset(ByteBuffer archive, int node) throws IOException {
+		return dataOffset(slice(archive, (int) table.getOffset(node), LOCHDR), node);
+	}
+
+	/**
+	 * Get extra fields of local header of entry.
+	 */
+	ByteBuffer getLocalExtra(FileChannel channel, int node) throws IOException {
+		ByteBuffer loc = readFully(channel, table.getOffset(node), LOCHDR);
+		int extraLength = loc.getShort(28) & 0xFFFF;
+		return readFully(channel, dataOffset(loc, node) - extraLength, extraLength);
+	}
+
+	ByteBuffer getLocalExtra(ByteBuffer archive, int node) throws IOException {
+		ByteBuffer loc = slice(archive, (int) table.getOffset(node), LOCHDR);
+		int extraLength = loc.getShort(28) & 0xFFFF;
+		return slice(archive, (int) dataOffset(loc, node) - extraLength, extraLength);
+	}
+
+	private long dataOffset(ByteBuffer loc, int node) throws IOException {
+		if (loc.getInt(0) != LOCSIG) {
+			throw new ZipException("invalid LOC header: " + table.getPath(node));
+		}
+		int nameLength = loc.getShort(26) & 0xFFFF;
+		int extraLength = loc.getShort(28) & 0xFFFF;
+		return table.getOffset(node) + LOCHDR + nameLength + extraLength;
+	}
+
+	/**
+	 * Open stream for entry data.
+	 *
+	 * @param channel
+	 *            FileChannel
+	 * @param node
+	 *            node of entry in EntryTable
+	 * @param closeChannel
+	 *            if true, channel is closed when returned stream is closed
+	 */
+	InputStream getInputStream(FileChannel channel, int node, boolean closeChannel) throws IOException {
+		checkEntry(node);
+		long dataOffset = getDataOffset(channel, node);
+		InputStream in = new ChannelRangeInputStream(channel, dataOffset, table.getCompressedSize(node), closeChannel);
+		switch (table.getMethod(node)) {
+		case ZipEntry.STORED:
+			return in;
+		case ZipEntry.DEFLATED:
+			return new EntryInflaterInputStream(in);
+		default:
+			in.close();
+			throw unsupportedMethod(node);
+		}
+	}
+
+	/**
+	 * Open stream for entry data directly from buffer which holds the whole
+	 * archive. STORED entries are served from a slice of the buffer, DEFLATED
+	 * entries are inflated from a slice, without copying compressed data.
+	 */
+	InputStream getInputStream(ByteBuffer archive, int node) throws IOException {
+		checkEntry(node);
+		int dataOffset = (int) getDataOffset(archive, node);
+		ByteBuffer data = slice(archive, dataOffset, (int) table.getCompressedSize(node));
+		switch (table.getMethod(node)) {
+		case ZipEntry.STORED:
+			return new ByteBufferInputStream(data);
+		case ZipEntry.DEFLATED:
+			return new BufferInflaterInputStream(data);
+		default:
+			throw unsupportedMethod(node);
+		}
+	}
+
+	/**
+	 * Open stream for compressed entry data (as stored in archive).
+	 */
+	InputStream getRawInputStream(FileChannel channel, int node, boolean closeChannel) throws IOException {
+		checkEntry(node);
+		long dataOffset = getDataOffset(channel, node);
+		return new ChannelRangeInputStream(channel, dataOffset, table.getCompressedSize(node), closeChannel);
+	}
+
+	InputStream getRawInputStream(ByteBuffer archive, int node) throws IOException {
+		checkEntry(node);
+		int dataOffset = (int) getDataOffset(archive, node);
+		return new ByteBufferInputStream(slice(archive, dataOffset, (int) table.getCompressedSize(node)));
+	}
+
+	private void checkEntry(int node) throws IOException {
+		if (table.isImplied(node)) {
+			throw new IOException("not an entry: " + table.getPath(node));
+		}
+	}
+
+	private ZipException unsupportedMethod(int node) {
+		return new ZipException("unsupported compression method " + table.getMethod(node) + ": " + table.getPath(node));
+	}
+
+	/**
+	 * Inflates entry data from ByteBuffer slice. Inflater is borrowed from
+	 * InflaterPool and returned when stream is closed.
+	 */
+	static class BufferInflaterInputStream extends InputStream {
+		private final InflaterPool pool = InflaterPool.getDefault();
+		private final Inflater inf = pool.borrowInflater();
+		private byte[] single;
+		private boolean closed;
+
+		BufferInflaterInputStream(ByteBuffer data) {
+			inf.setInput(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (single == null) {
+				single = new byte[1];
+			}
+			int read = read(single, 0, 1);
+			if (read <= 0) {
+				return -1;
+			}
+			return single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				int n;
+				while ((n = inf.inflate(b, off, len)) == 0) {
+					if (inf.finished() || inf.needsDictionary()) {
+						return -1;
+					}
+					if (inf.needsInput()) {
+						throw new EOFException("Unexpected end of ZLIB input stream");
+					}
+				}
+				return n;
+			} catch (DataFormatException ex) {
+				throw new ZipException(ex.getMessage());
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (closed || inf.finished()) ? 0 : 1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				pool.returnInflater(inf);
+			}
+		}
+	}
+
+	/**
+	 * Inflates entry data read from stream. Inflater and input buffer are
+	 * borrowed from InflaterPool and returned when stream is closed.
+	 */
+	static class EntryInflaterInputStream extends InputStream {
+		private final InflaterPool pool = InflaterPool.getDefault();
+		private final Inflater inf = pool.borrowInflater();
+		private final byte[] buf = pool.borrowBuffer();
+		private final InputStream in;
+		private byte[] single;
+		private boolean eof;
+		private boolean closed;
+
+		EntryInflaterInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (single == null) {
+				single = new byte[1];
+			}
+			int read = read(single, 0, 1);
+			if (read <= 0) {
+				return -1;
+			}
+			return single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				int n;
+				while ((n = inf.inflate(b, off, len)) == 0) {
+					if (inf.finished() || inf.needsDictionary()) {
+						return -1;
+					}
+					if (inf.needsInput()) {
+						fill();
+					}
+				}
+				return n;
+			} catch (DataFormatException ex) {
+				throw new ZipException(ex.getMessage());
+			}
+		}
+
+		private void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+			int len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				// inflater may need one dummy byte after last block
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (closed || inf.finished()) ? 0 : 1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				pool.returnInflater(inf);
+				pool.returnBuffer(buf);
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Attributes of zip entry as stored in central directory.
+ * 
+ * Zip keeps only modification time, so lastAccessTime and creationTime
+ * return same value as lastModifiedTime.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class ZipEntryAttributes implements BasicFileAttributes {
+
+	private final long time;
+	private final long size;
+	private final long compressedSize;
+	private final long crc;
+	private final int method;
+	private final boolean directory;
+	private final int node;
+
+	ZipEntryAttributes(long time, long size, long compressedSize, long crc, int method, boolean directory, int node) {
+		this.time = time;
+		this.size = size;
+		this.compressedSize = compressedSize;
+		this.crc = crc;
+		this.method = method;
+		this.directory = directory;
+		this.node = node;
+	}
+
+	public FileTime lastModifiedTime() {
+		return FileTime.fromMillis(time);
+	}
+
+	public FileTime lastAccessTime() {
+		return lastModifiedTime();
+	}
+
+	public FileTime creationTime() {
+		return lastModifiedTime();
+	}
+
+	public boolean isRegularFile() {
+		return !directory;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public boolean isSymbolicLink() {
+		return false;
+	}
+
+	public boolean isOther() {
+		return false;
+	}
+
+	/**
+	 * @return uncompressed size (from central directory, or from data
+	 *         descriptor if archive is read sequentially), or -1 for
+	 *         directories which have no entry in archive
+	 */
+	public long size() {
+		return size;
+	}
+
+	public Object fileKey() {
+		return Integer.valueOf(node);
+	}
+
+	/**
+	 * @return compressed size, or -1 for directories which have no entry in
+	 *         archive
+	 */
+	public long compressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * @return CRC-32 of uncompressed data (0 for directory entries), or -1
+	 *         for directories which have no entry in archive
+	 */
+	public long crc() {
+		return crc;
+	}
+
+	/**
+	 * @return compression method (0 - STORED, 8 - DEFLATED)
+	 */
+	public int method() {
+		return method;
+	}
+
+	@Override
+	public String toString() {
+		return "ZipEntryAttributes [time=" + time + ", size=" + size + ", compressedSize=" + compressedSize
+				+ ", crc=" + (crc < 0 ? "-1" : Long.toHexString(crc)) + ", method=" + method + ", directory=" + directory + "]";
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts all entries of VZipFile to destination directory.
+ * 
+ * Directories are created first. Then entries are handed out to worker
+ * threads in disjoint chunks; every worker opens its own channel to the
+ * archive and inflates its entries independently of other workers.
+ * Archives without central directory are extracted in one sequential pass.
+ * 
+ * Entry names which could be written outside of destination directory
+ * ("..", drive letters, backslashes etc.) are rejected before anything is
+ * extracted.
+ * 
+ * @author Andrey Kuznetsov
+ */
+class ZipExtractor {
+
+	/** count of entries which worker takes at once */
+	static final int CHUNK = 32;
+
+	private final VZipFile zip;
+	private final EntryTable table;
+	private final ProgressListener listener;
+
+	private VFile[] directories;
+	private Path targetPath;
+	private int[] files;
+	private long bytesTotal;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicInteger filesDone = new AtomicInteger();
+	private final AtomicLong bytesDone = new AtomicLong();
+	private volatile boolean failed;
+
+	ZipExtractor(VZipFile zip, ProgressListener listener) {
+		this.zip = zip;
+		this.table = zip.getTable();
+		this.listener = listener;
+	}
+
+	void extract(VFile target, int parallelism) throws IOException {
+		target.mkdirs();
+		createDirectories(target);
+
+		ZipDirectory directory = zip.getDirectory();
+		if (directory == null) {
+			extractSequential();
+			return;
+		}
+
+		ZipSpool spool = null;
+		ByteBuffer buffer = zip.getBuffer();
+		Path path = zip.getSeekablePath();
+		if (buffer == null && path == null) {
+			spool = ZipSpool.acquire(zip.getFile());
+			buffer = spool.getBuffer();
+		}
+		try {
+			int threads = Math.max(1, Math.min(parallelism, (files.length + CHUNK - 1) / CHUNK));
+			if (threads == 1) {
+				new Worker(directory, buffer, path, spool).call();
+				return;
+			}
+			VfsExecutor executor = VfsExecutor.createPool("zip-extract", threads);
+			try {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>();
+				for (int i = 0; i < threads; i++) {
+					futures.add(executor.submit(new Worker(directory, buffer, path, spool)));
+				}
+				for (Future<Void> f : futures) {
+					f.get();
+				}
+			} catch (InterruptedException ex) {
+				failed = true;
+				Thread.currentThread().interrupt();
+				throw new IOException(ex);
+			} catch (ExecutionException ex) {
+				failed = true;
+				Throwable cause = ex.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException(cause);
+			} finally {
+				executor.shutdownNow();
+			}
+		} finally {
+			if (spool != null) {
+				spool.release();
+			}
+		}
+	}
+
+	/**
+	 * Create all directories and collect files. Parent node always precedes
+	 * its children, so one pass is enough.
+	 */
+	private void createDirectories(VFile target) throws IOException {
+		int count = table.getNodeCount();
+		for (int node = 1; node < count; node++) {
+			if (!isSafeName(table.getName(node))) {
+				throw new IOException("entry is outside of target directory: " + table.getPath(node));
+			}
+		}
+		Path path = target.toPath();
+		if (path != null) {
+			targetPath = path.toAbsolutePath().normalize();
+		}
+		directories = new VFile[count];
+		directories[EntryTable.ROOT] = target;
+		int fileCount = 0;
+		for (int node = 1; node < count; node++) {
+			if (table.isDirectory(node)) {
+				VFile dir = resolve(node);
+				dir.mkdirs();
+				directories[node] = dir;
+			} else {
+				fileCount++;
+			}
+		}
+		files = new int[fileCount];
+		int i = 0;
+		for (int node = 1; node < count; node++) {
+			if (!table.isDirectory(node)) {
+				files[i++] = node;
+				bytesTotal += Math.max(0, table.getSize(node));
+			}
+		}
+	}
+
+	/**
+	 * @return false if name of entry (one path segment) could point outside
+	 *         of its parent directory
+	 */
+	static boolean isSafeName(String name) {
+		if (name.length() == 0 || name.equals(".") || name.equals("..")) {
+			return false;
+		}
+		if (name.length() >= 2 && name.charAt(1) == ':' && Character.isLetter(name.charAt(0))) {
+			// drive letter
+			return false;
+		}
+		// '\\' is separator on Windows
+		return name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+	}
+
+	/**
+	 * Get destination of node and check that it is inside of target.
+	 */
+	private VFile resolve(int node) throws IOException {
+		VFile f = directories[table.getParent(node)].get(table.getName(node));
+		Path path = f != null ? f.toPath() : null;
+		if (f == null || (targetPath != null && path != null && !path.toAbsolutePath().normalize().startsWith(targetPath))) {
+			throw new IOException("entry is outside of target directory: " + table.getPath(node));
+		}
+		return f;
+	}
+
+	class Worker implements Callable<Void> {
+		final ZipDirectory directory;
+		final ByteBuffer buffer;
+		final Path path;
+		final ZipSpool spool;
+
+		Worker(ZipDirectory directory, ByteBuffer buffer, Path path, ZipSpool spool) {
+			this.directory = directory;
+			this.buffer = buffer;
+			this.path = path;
+			this.spool = spool;
+		}
+
+		public Void call() throws IOException {
+			FileChannel channel = null;
+			byte[] buf = InflaterPool.getDefault().borrowBuffer();
+			try {
+				if (buffer == null) {
+					channel = spool != null ? spool.openChannel() : FileChannel.open(path, StandardOpenOption.READ);
+				}
+				int start;
+				while (!failed && (start = next.getAndAdd(CHUNK)) < files.length) {
+					int end = Math.min(files.length, start + CHUNK);
+					for (int i = start; i < end && !failed; i++) {
+						int node = files[i];
+						InputStream in;
+						if (buffer != null) {
+							in = directory.getInputStream(buffer, node);
+						} else {
+							in = directory.getInputStream(channel, node, false);
+						}
+						write(node, in, buf);
+					}
+				}
+			} catch (IOException ex) {
+				failed = true;
+				throw ex;
+			} finally {
+				InflaterPool.getDefault().returnBuffer(buf);
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			return null;
+		}
+	}
+
+	private void write(int node, InputStream in, byte[] buf) throws IOException {
+		VFile dst = resolve(node);
+		OutputStream out = null;
+		long count = 0;
+		try {
+			out = dst.getOutputStream();
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				out.write(buf, 0, read);
+				count += read;
+			}
+		} finally {
+			VfsUtil.close(in);
+			VfsUtil.close(out);
+		}
+		int done = filesDone.incrementAndGet();
+		long bytes = bytesDone.addAndGet(count);
+		if (listener != null) {
+			listener.progress(dst, done, files.length, bytes, bytesTotal);
+		}
+	}
+
+	/**
+	 * Archive can't be read with random access, so read it once from start
+	 * to end.
+	 */
+	private void extractSequential() throws IOException {
+		byte[] buf = InflaterPool.getDefault().borrowBuffer();
+		ZipInputStream zin = new ZipInputStream(zip.getInputStream());
+		try {
+			ZipEntry entry;
+			while ((entry = zin.getNextEntry()) != null) {
+				int node = table.find(entry.getName());
+				if (node == EntryTable.NONE || table.isDirectory(node)) {
+					continue;
+				}
+				write(node, new NonClosingInputStream(zin), buf);
+			}
+		} finally {
+			InflaterPool.getDefault().returnBuffer(buf);
+			zin.close();
+		}
+	}
+
+	static class NonClosingInputStream extends FilterInputStream {
+		NonClosingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent cache for zip central directories. Each archive is stored in
+ * its own file, keyed by archive absolute path, length and lastModified. If
+ * length or lastModified of archive changes, cached index is discarded.
+ * 
+ * Names are prefix-compressed against the previous entry and all numbers
+ * are written as variable-length integers, so index file is usually much
+ * smaller than the central directory itself.
+ * 
+ * Least recently used index files are evicted if cache holds more than
+ * maxEntries files or more than maxBytes bytes.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class ZipIndexCache {
+
+	private static final int MAGIC = 0x565A4958; // "VZIX"
+	private static final int VERSION = 3;
+	private static final String SUFFIX = ".idx";
+
+	private static volatile ZipIndexCache defaultCache;
+
+	private final Path directory;
+	private final int maxEntries;
+	private final long maxBytes;
+
+	/**
+	 * @param directory
+	 *            directory for index files (created if necessary)
+	 * @param maxEntries
+	 *            max count of index files
+	 * @param maxBytes
+	 *            max total size of index files
+	 */
+	public ZipIndexCache(Path directory, int maxEntries, long maxBytes) {
+		if (directory == null) {
+			throw new NullPointerException();
+		}
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Set cache used by VZipFile. Cache is disabled if null (default).
+	 */
+	public static void setDefault(ZipIndexCache cache) {
+		defaultCache = cache;
+	}
+
+	public static ZipIndexCache getDefault() {
+		return defaultCache;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Load cached central directory of archive.
+	 * 
+	 * @return ZipDirectory or null if archive is not in cache or was changed
+	 */
+	ZipDirectory load(Path archive) {
+		Path index;
+		String absolutePath;
+		long length;
+		long lastModified;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+			absolutePath = archive.toAbsolutePath().toString();
+			length = attrs.size();
+			lastModified = attrs.lastModifiedTime().toMillis();
+			index = getIndexFile(absolutePath);
+			if (!Files.isRegularFile(index)) {
+				return null;
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+
+		ZipDirectory directory;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+			directory = read(in, absolutePath, length, lastModified);
+		} catch (IOException ex) {
+			directory = null;
+		}
+		// index is closed now, so it can be deleted or touched on every platform
+		if (directory == null) {
+			return invalid(index);
+		}
+		try {
+			Files.setLastModifiedTime(index, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException ex) {
+			return invalid(index);
+		}
+		return directory;
+	}
+
+	/**
+	 * @return ZipDirectory or null if index belongs to other version of
+	 *         archive
+	 */
+	private static ZipDirectory read(DataInputStream in, String absolutePath, long length, long lastModified)
+			throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(absolutePath)
+				|| in.readLong() != length || in.readLong() != lastModified) {
+			return null;
+		}
+		int count = (int) readVarLong(in);
+		EntryTable table = new EntryTable(count);
+		byte[] name = new byte[256];
+		for (int i = 0; i < count; i++) {
+			int prefix = (int) readVarLong(in);
+			int suffix = (int) readVarLong(in);
+			if (prefix + suffix > name.length) {
+				byte[] tmp = new byte[Math.max(prefix + suffix, name.length * 2)];
+				System.arraycopy(name, 0, tmp, 0, prefix);
+				name = tmp;
+			}
+			in.readFully(name, prefix, suffix);
+
+			// index of record in central directory (records with duplicate
+			// names are merged, so it is not i)
+			int index = (int) readVarLong(in);
+			int method = (int) readVarLong(in);
+			long crc = in.readInt() & 0xFFFFFFFFL;
+			long compressedSize = readVarLong(in);
+			long size = readVarLong(in);
+			long offset = readVarLong(in);
+			long time = in.readLong();
+			table.add(name, 0, prefix + suffix, index, method, crc, compressedSize, size, offset, time);
+		}
+		table.trim();
+		return new ZipDirectory(table);
+	}
+
+	/**
+	 * Delete stale or broken index file.
+	 * 
+	 * @return null
+	 */
+	private static ZipDirectory invalid(Path index) {
+		try {
+			Files.deleteIfExists(index);
+		} catch (IOException ex) {
+			// ignore
+		}
+		return null;
+	}
+
+	/**
+	 * Save central directory of archive in cache.
+	 */
+	void store(Path archive, ZipDirectory zd) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+			String absolutePath = archive.toAbsolutePath().toString();
+			Files.createDirectories(directory);
+			Path index = getIndexFile(absolutePath);
+			Path tmp = Files.createTempFile(directory, "index", ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeUTF(absolutePath);
+					out.writeLong(attrs.size());
+					out.writeLong(attrs.lastModifiedTime().toMillis());
+					EntryTable table = zd.table;
+					writeVarLong(out, table.getEntryCount());
+					byte[] prev = new byte[0];
+					int prevLength = 0;
+					byte[] name = new byte[256];
+					for (int node = 0; node < table.getNodeCount(); node++) {
+						if (table.isImplied(node)) {
+							continue;
+						}
+						int length = table.getPathLength(node) + 1;
+						if (length > name.length) {
+							name = new byte[length * 2];
+						}
+						length = table.getPathBytes(node, name);
+						if (table.isDirectory(node)) {
+							name[length++] = '/';
+						}
+						int prefix = 0;
+						int max = Math.min(prevLength, length);
+						while (prefix < max && prev[prefix] == name[prefix]) {
+							prefix++;
+						}
+						writeVarLong(out, prefix);
+						writeVarLong(out, length - prefix);
+						out.write(name, prefix, length - prefix);
+						writeVarLong(out, table.getIndex(node));
+						writeVarLong(out, table.getMethod(node));
+						out.writeInt((int) table.getCrc(node));
+						writeVarLong(out, table.getCompressedSize(node));
+						writeVarLong(out, table.getSize(node));
+						writeVarLong(out, table.getOffset(node));
+						out.writeLong(table.getRawTime(node));
+
+						byte[] swap = prev;
+						prev = name;
+						prevLength = length;
+						name = swap;
+					}
+				}
+				Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+			evict();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Remove cached index of archive.
+	 */
+	public void invalidate(Path archive) {
+		try {
+			Files.deleteIfExists(getIndexFile(archive.toAbsolutePath().toString()));
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Remove all cached indexes.
+	 */
+	public void clear() {
+		for (IndexFile f : listIndexFiles()) {
+			try {
+				Files.deleteIfExists(f.path);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Delete least recently used index files until cache fits in maxEntries
+	 * and maxBytes.
+	 */
+	void evict() {
+		List<IndexFile> files = listIndexFiles();
+		long total = 0;
+		for (IndexFile f : files) {
+			total += f.size;
+		}
+		if (files.size() <= maxEntries && total <= maxBytes) {
+			return;
+		}
+		Collections.sort(files, new Comparator<IndexFile>() {
+			public int compare(IndexFile f0, IndexFile f1) {
+				return Long.compare(f0.lastUsed, f1.lastUsed);
+			}
+		});
+		int count = files.size();
+		for (IndexFile f : files) {
+			if (count <= maxEntries && total <= maxBytes) {
+				break;
+			}
+			try {
+				Files.deleteIfExists(f.path);
+				count--;
+				total -= f.size;
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	static class IndexFile {
+		Path path;
+		long size;
+		long lastUsed;
+	}
+
+	private List<IndexFile> listIndexFiles() {
+		List<IndexFile> files = new ArrayList<IndexFile>();
+		if (!Files.isDirectory(directory)) {
+			return files;
+		}
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path p : ds) {
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+					IndexFile f = new IndexFile();
+					f.path = p;
+					f.size = attrs.size();
+					f.lastUsed = attrs.lastModifiedTime().toMillis();
+					files.add(f);
+				} catch (IOException ex) {
+					// deleted meanwhile
+				}
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		return files;
+	}
+
+	private Path getIndexFile(String absolutePath) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(absolutePath.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return directory.resolve(sb.append(SUFFIX).toString());
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new EOFException("malformed varint");
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that changes of archive which index was loaded from ZipIndexCache
+ * are committed correctly. Index of entry in cached table must be index of
+ * its central directory record, otherwise wrong records are copied.
+ * 
+ * Usage: ZipIndexCacheTest
+ * 
+ * @author Andrey Kuznetsov
+ */
+public class ZipIndexCacheTest {
+
+	public static void main(String[] args) throws IOException {
+		Path dir = Files.createTempDirectory("vzip-test");
+		ZipIndexCache old = ZipIndexCache.getDefault();
+		ZipIndexCache cache = new ZipIndexCache(dir.resolve("cache"), 100, 1 << 20);
+		ZipIndexCache.setDefault(cache);
+		try {
+			Path archive = dir.resolve("test.zip");
+			// directory entry after its file, so node order differs from
+			// order of records
+			try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+				out.putNextEntry(new ZipEntry("a/x.txt"));
+				out.write("xxxxxxxxxx".getBytes(StandardCharsets.UTF_8));
+				out.putNextEntry(new ZipEntry("a/"));
+				out.putNextEntry(new ZipEntry("b.txt"));
+				out.write("bbb".getBytes(StandardCharsets.UTF_8));
+			}
+
+			// first VZipFile stores index, second loads it
+			new VZipFile(new JFile(archive.toFile())).list();
+			if (cache.load(archive) == null) {
+				throw new AssertionError("index is not cached");
+			}
+			VZipFile zip = new VZipFile(new JFile(archive.toFile()));
+			zip.remove("b.txt");
+			zip.commit();
+
+			try (ZipFile zf = new ZipFile(archive.toFile())) {
+				StringBuilder names = new StringBuilder();
+				Enumeration<? extends ZipEntry> e = zf.entries();
+				while (e.hasMoreElements()) {
+					names.append(e.nextElement().getName()).append(' ');
+				}
+				check("entries", "a/x.txt a/ ", names.toString());
+				check("a/x.txt", "xxxxxxxxxx", read(zf, "a/x.txt"));
+				check("a/", "", read(zf, "a/"));
+			}
+			System.out.println("ZipIndexCacheTest OK");
+		} finally {
+			ZipIndexCache.setDefault(old);
+			delete(dir);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+				for (Path child : children) {
+					delete(child);
+				}
+			}
+		}
+		Files.delete(path);
+	}
+
+	private static String read(ZipFile zf, String name) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try (InputStream in = zf.getInputStream(zf.getEntry(name))) {
+			byte[] buf = new byte[1024];
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				bout.write(buf, 0, read);
+			}
+		}
+		return new String(bout.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void check(String what, String expected, String actual) {
+		if (!expected.equals(actual)) {
+			throw new AssertionError(what + ": expected \"" + expected + "\" but was \"" + actual + "\"");
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Spooled copy of an archive which is nested in another archive. Nested
+ * archive is decompressed only once, into a direct ByteBuffer (small
+ * archives) or into a temporary file, and then accessed randomly like a top
+ * level archive.
+ * 
+ * Spools are reference counted. Every user calls acquire() and release().
+ * Spools which are not referenced stay in cache until total size of spooled
+ * data exceeds limit, then least recently used are removed.
+ * 
+ * @author Andrey Kuznetsov
+ */
+public final class ZipSpool {
+
+	private static final LinkedHashMap<String, ZipSpool> cache = new LinkedHashMap<String, ZipSpool>(16, 0.75f, true);
+
+	private static long maxBytes = 256L * 1024 * 1024;
+	private static int maxMemoryBytes = 4 * 1024 * 1024;
+	private static long totalBytes;
+
+	private final String key;
+	private int refCount;
+
+	private volatile boolean loaded;
+	private ByteBuffer buffer;
+	private Path path;
+	private long length;
+
+	private ZipSpool(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Set max size of spooled data which is kept while not referenced.
+	 */
+	public static void setMaxBytes(long maxBytes) {
+		synchronized (cache) {
+			ZipSpool.maxBytes = maxBytes;
+			evict();
+		}
+	}
+
+	public static long getMaxBytes() {
+		synchronized (cache) {
+			return maxBytes;
+		}
+	}
+
+	/**
+	 * Archives not larger than maxMemoryBytes are spooled into direct
+	 * ByteBuffer, larger archives - into temporary file.
+	 */
+	public static void setMaxMemoryBytes(int maxMemoryBytes) {
+		synchronized (cache) {
+			ZipSpool.maxMemoryBytes = maxMemoryBytes;
+		}
+	}
+
+	public static int getMaxMemoryBytes() {
+		synchronized (cache) {
+			return maxMemoryBytes;
+		}
+	}
+
+	/**
+	 * @return total size of spooled data
+	 */
+	public static long getTotalBytes() {
+		synchronized (cache) {
+			return totalBytes;
+		}
+	}
+
+	/**
+	 * Get spool for source, spool source if necessary. Returned spool must be
+	 * released.
+	 */
+	static ZipSpool acquire(VFile source) throws IOException {
+		String key = source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified();
+		if (source instanceof VZipFileEntry) {
+			// entry can be replaced by commit with content of same length and time
+			ZipEntryAttributes attrs = ((VZipFileEntry) source).getAttributes();
+			if (attrs != null) {
+				key += "|" + attrs.crc();
+			}
+		}
+		ZipSpool spool;
+		synchronized (cache) {
+			spool = cache.get(key);
+			if (spool == null) {
+				spool = new ZipSpool(key);
+				cache.put(key, spool);
+			}
+			spool.refCount++;
+		}
+		try {
+			spool.load(source);
+		} catch (IOException ex) {
+			spool.release();
+			throw ex;
+		}
+		return spool;
+	}
+
+	private synchronized void load(VFile source) throws IOException {
+		if (loaded) {
+			return;
+		}
+		long size = source.length();
+		int memoryLimit = getMaxMemoryBytes();
+		InputStream in = source.getInputStream();
+		try {
+			if (size >= 0 && size <= memoryLimit) {
+				ByteBuffer b = ByteBuffer.allocateDirect((int) size);
+				byte[] tmp = new byte[8192];
+				int read;
+				while (b.hasRemaining() && (read = in.read(tmp, 0, Math.min(tmp.length, b.remaining()))) > 0) {
+					b.put(tmp, 0, read);
+				}
+				b.flip();
+				buffer = b;
+				length = b.limit();
+			} else {
+				Path p = Files.createTempFile("vzip", ".spool");
+				p.toFile().deleteOnExit();
+				try (OutputStream out = Files.newOutputStream(p)) {
+					byte[] tmp = new byte[65536];
+					int read;
+					while ((read = in.read(tmp)) > 0) {
+						out.write(tmp, 0, read);
+					}
+				} catch (IOException ex) {
+					Files.deleteIfExists(p);
+					throw ex;
+				}
+				path = p;
+				length = Files.size(p);
+			}
+		} finally {
+			VfsUtil.close(in);
+		}
+		loaded = true;
+		synchronized (cache) {
+			totalBytes += length;
+		}
+	}
+
+	void release() {
+		synchronized (cache) {
+			refCount--;
+			if (refCount <= 0 && !loaded) {
+				cache.remove(key);
+			}
+			evict();
+		}
+	}
+
+	private static void evict() {
+		Iterator<ZipSpool> it = cache.values().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			ZipSpool spool = it.next();
+			if (spool.refCount <= 0 && spool.loaded) {
+				it.remove();
+				spool.dispose();
+			}
+		}
+	}
+
+	private void dispose() {
+		totalBytes -= length;
+		loaded = false;
+		buffer = null;
+		if (path != null) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			path = null;
+		}
+	}
+
+	/**
+	 * @return spooled archive if it is in memory, otherwise null
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Open channel to spooled archive.
+	 */
+	FileChannel openChannel() throws IOException {
+		return FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	/**
+	 * Open stream for entry of spooled archive. Spool is released when
+	 * stream is closed.
+	 */
+	InputStream getInputStream(ZipDirectory directory, int index) throws IOException {
+		InputStream in;
+		if (buffer != null) {
+			in = directory.getInputStream(buffer, index);
+		} else {
+			FileChannel channel = openChannel();
+			try {
+				in = directory.getInputStream(channel, index, true);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+		return new SpoolInputStream(in, this);
+	}
+
+	static class SpoolInputStream extends FilterInputStream {
+		private ZipSpool spool;
+
+		SpoolInputStream(InputStream in, ZipSpool spool) {
+			super(in);
+			this.spool = spool;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (spool != null) {
+					spool.release();
+					spool = null;
+				}
+			}
+		}
+	}
+}
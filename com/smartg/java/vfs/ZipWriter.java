@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) Andrey Kuznetsov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of imagero Andrey Kuznetsov nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.smartg.java.vfs;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes zip archive entry by entry. Unlike ZipOutputStream it can copy
+ * already compressed data as is (raw copy) and append entries after the
+ * entries of an existing archive.
+ * 
+ * ZIP64 records are written only if they are needed (more than 65534
+ * entries, sizes or offsets larger than 4 GB).
+ * 
+ * Copied entries keep name bytes, flags, attributes, extra fields and
+ * comment of their original central directory record.
+ * 
+ * @author Andrey Kuznetsov
+ */
+final class ZipWriter implements Closeable {
+
+	static final int EXTSIG = 0x08074b50;
+
+	/** general purpose flag: sizes and crc are in data descriptor */
+	static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+	/** general purpose flag: name is encoded in UTF-8 */
+	static final int FLAG_UTF8 = 0x0800;
+
+	private final OutputStream out;
+	private long position;
+
+	private final List<Record> records = new ArrayList<Record>();
+
+	private ByteBuffer central;
+	private long centralCount;
+
+	private Deflater deflater;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private final byte[] buf = new byte[InflaterPool.BUFFER_SIZE];
+
+	private boolean finished;
+
+	/**
+	 * @param out
+	 *            OutputStream
+	 * @param position
+	 *            position of out in archive (0 for new archive)
+	 */
+	ZipWriter(OutputStream out, long position) {
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		this.position = position;
+	}
+
+	void setLevel(int level) {
+		this.level = level;
+		if (deflater != null) {
+			deflater.setLevel(level);
+		}
+	}
+
+	/**
+	 * @return current position in archive
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Keep central directory records of existing archive. They are written
+	 * before records of new entries.
+	 * 
+	 * @param cen
+	 *            central directory of existing archive
+	 * @param count
+	 *            count of records in cen
+	 */
+	void copyCentral(ByteBuffer cen, long count) {
+		this.central = cen;
+		this.centralCount = count;
+	}
+
+	/**
+	 * Write directory entry.
+	 * 
+	 * @param name
+	 *            name of entry (should end with '/')
+	 */
+	void writeDirectory(String name, long time) throws IOException {
+		writeDirectory(new Record(name, ZipEntry.STORED, time));
+	}
+
+	/**
+	 * Copy directory entry of other archive.
+	 * 
+	 * @param cen
+	 *            central directory of other archive
+	 * @param pos
+	 *            position of record of entry in cen
+	 * @param localExtra
+	 *            extra fields of local header of entry
+	 */
+	void copyDirectory(ByteBuffer cen, int pos, ByteBuffer localExtra, long time) throws IOException {
+		// directory has no data, even if it is DEFLATED in other archive
+		// (e.g. written by ZipOutputStream)
+		writeDirectory(Record.copyOf(cen, pos, localExtra, ZipEntry.STORED, time));
+	}
+
+	private void writeDirectory(Record r) throws IOException {
+		r.crc = 0;
+		writeLocal(r);
+		records.add(r);
+	}
+
+	/**
+	 * Write entry data which is already compressed.
+	 * 
+	 * @param raw
+	 *            compressed data, exactly compressedSize bytes
+	 */
+	void writeRaw(String name, int method, long crc, long compressedSize, long size, long time, InputStream raw)
+			throws IOException {
+		writeRaw(new Record(name, method, time), crc, compressedSize, size, raw);
+	}
+
+	/**
+	 * Copy compressed data of entry of other archive.
+	 * 
+	 * @param cen
+	 *            central directory of other archive
+	 * @param pos
+	 *            position of record of entry in cen
+	 * @param localExtra
+	 *            extra fields of local header of entry
+	 * @param raw
+	 *            compressed data, exactly compressedSize bytes
+	 */
+	void copyRaw(ByteBuffer cen, int pos, ByteBuffer localExtra, long crc, long compressedSize, long size, long time,
+			InputStream raw) throws IOException {
+		writeRaw(Record.copyOf(cen, pos, localExtra, cen.getShort(pos + 10) & 0xFFFF, time), crc, compressedSize, size,
+				raw);
+	}
+
+	private void writeRaw(Record r, long crc, long compressedSize, long size, InputStream raw) throws IOException {
+		r.crc = crc;
+		r.compressedSize = compressedSize;
+		r.size = size;
+		writeLocal(r);
+		long count = 0;
+		int read;
+		while (count < compressedSize && (read = raw.read(buf, 0, (int) Math.min(buf.length, compressedSize - count))) > 0) {
+			write(buf, 0, read);
+			count += read;
+		}
+		if (count != compressedSize) {
+			throw new IOException("unexpected end of entry data: " + new String(r.name, StandardCharsets.UTF_8));
+		}
+		records.add(r);
+	}
+
+	/**
+	 * Deflate entry data. Sizes and crc are not known before data is
+	 * compressed, so they are written to data descriptor after data.
+	 * 
+	 * @param size
+	 *            expected size of data or -1 if unknown. If size is close to
+	 *            4 GB, local header gets ZIP64 extra field (with zero sizes),
+	 *            so readers know that data descriptor has 8 byte sizes. Data
+	 *            of unknown size is spooled to temporary file first.
+	 */
+	void write(String name, long time, InputStream in, long size) throws IOException {
+		if (size < 0) {
+			Path tmp = Files.createTempFile("vzip", ".tmp");
+			try {
+				Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+				try (InputStream spooled = Files.newInputStream(tmp)) {
+					write(name, time, spooled, Files.size(tmp));
+				}
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+			return;
+		}
+		Record r = new Record(name, ZipEntry.DEFLATED, time);
+		r.flags |= FLAG_DATA_DESCRIPTOR;
+		// deflated data can be a bit larger than input
+		r.zip64Local = size + (size >> 10) + 64 >= ZipDirectory.ZIP64_MAGICVAL;
+		writeLocal(r);
+
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		Deflater def = deflater;
+		def.reset();
+		CRC32 crc = new CRC32();
+		byte[] input = InflaterPool.getDefault().borrowBuffer();
+		try {
+			int read;
+			while ((read = in.read(input)) > 0) {
+				crc.update(input, 0, read);
+				def.setInput(input, 0, read);
+				while (!def.needsInput()) {
+					deflate(def);
+				}
+			}
+			def.finish();
+			while (!def.finished()) {
+				deflate(def);
+			}
+		} finally {
+			InflaterPool.getDefault().returnBuffer(input);
+		}
+		r.crc = crc.getValue();
+		r.size = def.getBytesRead();
+		r.compressedSize = def.getBytesWritten();
+		if (r.isZip64Size() && !r.zip64Local) {
+			throw new ZipException("entry is larger than expected: " + name);
+		}
+
+		ByteBuffer b = header(24);
+		b.putInt(EXTSIG);
+		b.putInt((int) r.crc);
+		if (r.zip64Local) {
+			b.putLong(r.compressedSize);
+			b.putLong(r.size);
+		} else {
+			b.putInt((int) r.compressedSize);
+			b.putInt((int) r.size);
+		}
+		write(b);
+		records.add(r);
+	}
+
+	private void deflate(Deflater def) throws IOException {
+		int len = def.deflate(buf, 0, buf.length);
+		if (len > 0) {
+			write(buf, 0, len);
+		}
+	}
+
+	private void writeLocal(Record r) throws IOException {
+		r.offset = position;
+		boolean zip64 = r.zip64Local || (!r.hasDataDescriptor() && r.isZip64Size());
+		int extraLength = zip64 ? 20 : 0;
+		if (r.localExtra != null) {
+			extraLength += r.localExtra.length;
+		} else if (r.hasExtendedTime()) {
+			extraLength += 9;
+		}
+		ByteBuffer b = header(ZipDirectory.LOCHDR + r.name.length + extraLength);
+		b.putInt(ZipDirectory.LOCSIG);
+		b.putShort((short) r.version(zip64));
+		b.putShort((short) r.flags);
+		b.putShort((short) r.method);
+		b.putInt(EntryTable.javaToDosTime(r.time));
+		if (r.hasDataDescriptor()) {
+			b.putInt(0);
+			b.putInt(zip64 ? -1 : 0);
+			b.putInt(zip64 ? -1 : 0);
+		} else {
+			b.putInt((int) r.crc);
+			b.putInt(zip64 ? -1 : (int) r.compressedSize);
+			b.putInt(zip64 ? -1 : (int) r.size);
+		}
+		b.putShort((short) r.name.length);
+		b.putShort((short) extraLength);
+		b.put(r.name);
+		if (zip64) {
+			// sizes are 0 if they are in data descriptor
+			b.putShort((short) ZipDirectory.EXTID_ZIP64);
+			b.putShort((short) 16);
+			b.putLong(r.size);
+			b.putLong(r.compressedSize);
+		}
+		if (r.localExtra != null) {
+			b.put(r.localExtra);
+		} else if (r.hasExtendedTime()) {
+			putExtendedTime(b, r);
+		}
+		write(b);
+	}
+
+	private static void putExtendedTime(ByteBuffer b, Record r) {
+		b.putShort((short) ZipDirectory.EXTID_EXTT);
+		b.putShort((short) 5);
+		b.put((byte) 1);
+		b.putInt((int) (r.time / 1000));
+	}
+
+	/**
+	 * Write central directory and END header. Nothing can be written after
+	 * this method was called.
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		long cenOffset = position;
+		if (central != null) {
+			ByteBuffer cen = central.duplicate();
+			cen.clear();
+			byte[] b = new byte[cen.remaining()];
+			cen.get(b);
+			write(b, 0, b.length);
+		}
+		for (Record r : records) {
+			writeCentral(r);
+		}
+		long cenSize = position - cenOffset;
+		long count = centralCount + records.size();
+
+		if (count >= 0xFFFF || cenSize >= ZipDirectory.ZIP64_MAGICVAL || cenOffset >= ZipDirectory.ZIP64_MAGICVAL) {
+			long zip64Offset = position;
+			ByteBuffer b = header(ZipDirectory.ZIP64_ENDHDR + ZipDirectory.ZIP64_LOCHDR);
+			b.putInt(ZipDirectory.ZIP64_ENDSIG);
+			b.putLong(ZipDirectory.ZIP64_ENDHDR - 12);
+			b.putShort((short) 45);
+			b.putShort((short) 45);
+			b.putInt(0);
+			b.putInt(0);
+			b.putLong(count);
+			b.putLong(count);
+			b.putLong(cenSize);
+			b.putLong(cenOffset);
+
+			b.putInt(ZipDirectory.ZIP64_LOCSIG);
+			b.putInt(0);
+			b.putLong(zip64Offset);
+			b.putInt(1);
+			write(b);
+		}
+		ByteBuffer b = header(ZipDirectory.ENDHDR);
+		b.putInt(ZipDirectory.ENDSIG);
+		b.putShort((short) 0);
+		b.putShort((short) 0);
+		b.putShort((short) Math.min(count, 0xFFFF));
+		b.putShort((short) Math.min(count, 0xFFFF));
+		b.putInt((int) Math.min(cenSize, ZipDirectory.ZIP64_MAGICVAL));
+		b.putInt((int) Math.min(cenOffset, ZipDirectory.ZIP64_MAGICVAL));
+		b.putShort((short) 0);
+		write(b);
+		out.flush();
+	}
+
+	private void writeCentral(Record r) throws IOException {
+		boolean zip64Size = r.isZip64Size();
+		boolean zip64Offset = r.offset >= ZipDirectory.ZIP64_MAGICVAL;
+		int zip64Length = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+		int extraLength = (zip64Length > 0 ? 4 + zip64Length : 0);
+		if (r.extra != null) {
+			extraLength += r.extra.length;
+		} else if (r.hasExtendedTime()) {
+			extraLength += 9;
+		}
+		int commentLength = r.comment != null ? r.comment.length : 0;
+		ByteBuffer b = header(ZipDirectory.CENHDR + r.name.length + extraLength + commentLength);
+		b.putInt(ZipDirectory.CENSIG);
+		b.putShort((short) r.versionMadeBy);
+		b.putShort((short) r.version(zip64Length > 0));
+		b.putShort((short) r.flags);
+		b.putShort((short) r.method);
+		b.putInt(EntryTable.javaToDosTime(r.time));
+		b.putInt((int) r.crc);
+		b.putInt(zip64Size ? -1 : (int) r.compressedSize);
+		b.putInt(zip64Size ? -1 : (int) r.size);
+		b.putShort((short) r.name.length);
+		b.putShort((short) extraLength);
+		b.putShort((short) commentLength);
+		b.putShort((short) 0);
+		b.putShort((short) r.internalAttributes);
+		b.putInt(r.getExternalAttributes());
+		b.putInt(zip64Offset ? -1 : (int) r.offset);
+		b.put(r.name);
+		if (zip64Length > 0) {
+			b.putShort((short) ZipDirectory.EXTID_ZIP64);
+			b.putShort((short) zip64Length);
+			if (zip64Size) {
+				b.putLong(r.size);
+				b.putLong(r.compressedSize);
+			}
+			if (zip64Offset) {
+				b.putLong(r.offset);
+			}
+		}
+		if (r.extra != null) {
+			b.put(r.extra);
+		} else if (r.hasExtendedTime()) {
+			putExtendedTime(b, r);
+		}
+		if (r.comment != null) {
+			b.put(r.comment);
+		}
+		write(b);
+	}
+
+	private static ByteBuffer header(int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void write(ByteBuffer b) throws IOException {
+		write(b.array(), 0, b.position());
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		position += len;
+	}
+
+	/**
+	 * Finish archive (if not yet finished) and close OutputStream.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Central directory record of written entry
+	 */
+	static class Record {
+		final byte[] name;
+		final int method;
+		final long time;
+		int flags = FLAG_UTF8;
+		long crc;
+		long compressedSize;
+		long size;
+		long offset;
+		/** local header has ZIP64 extra field and data descriptor has 8 byte sizes */
+		boolean zip64Local;
+
+		int versionMadeBy = 20;
+		int internalAttributes;
+		/** -1: MS-DOS directory attribute for directories */
+		int externalAttributes = -1;
+		/** extra fields of copied central directory record (without ZIP64) */
+		byte[] extra;
+		/** extra fields of copied local header (without ZIP64) */
+		byte[] localExtra;
+		byte[] comment;
+
+		Record(String name, int method, long time) {
+			this(name.getBytes(StandardCharsets.UTF_8), method, time);
+		}
+
+		Record(byte[] name, int method, long time) {
+			this.name = name;
+			this.method = method;
+			this.time = time;
+		}
+
+		/**
+		 * Create record with metadata of central directory record at pos.
+		 * 
+		 * @param method
+		 *            compression method of copied data
+		 */
+		static Record copyOf(ByteBuffer cen, int pos, ByteBuffer localExtra, int method, long time) {
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			int extra = pos + ZipDirectory.CENHDR + nameLength;
+
+			Record r = new Record(get(cen, pos + ZipDirectory.CENHDR, nameLength), method, time);
+			// sizes of copied entry are always in local header
+			r.flags = cen.getShort(pos + 8) & 0xFFFF & ~FLAG_DATA_DESCRIPTOR;
+			r.versionMadeBy = cen.getShort(pos + 4) & 0xFFFF;
+			r.internalAttributes = cen.getShort(pos + 36) & 0xFFFF;
+			r.externalAttributes = cen.getInt(pos + 38);
+			r.extra = removeZip64(cen, extra, extraLength);
+			r.localExtra = removeZip64(localExtra, 0, localExtra.limit());
+			if (commentLength > 0) {
+				r.comment = get(cen, extra + extraLength, commentLength);
+			}
+			return r;
+		}
+
+		private static byte[] get(ByteBuffer b, int pos, int length) {
+			byte[] data = new byte[length];
+			for (int i = 0; i < length; i++) {
+				data[i] = b.get(pos + i);
+			}
+			return data;
+		}
+
+		/**
+		 * @return extra fields without ZIP64 field, which is written again
+		 *         if needed
+		 */
+		private static byte[] removeZip64(ByteBuffer b, int off, int len) {
+			ByteBuffer res = header(len);
+			int end = off + len;
+			while (off + 4 <= end) {
+				int id = b.getShort(off) & 0xFFFF;
+				int size = b.getShort(off + 2) & 0xFFFF;
+				if (off + 4 + size > end) {
+					// broken field
+					break;
+				}
+				if (id != ZipDirectory.EXTID_ZIP64) {
+					res.put(get(b, off, 4 + size));
+				}
+				off += 4 + size;
+			}
+			return Arrays.copyOf(res.array(), res.position());
+		}
+
+		int getExternalAttributes() {
+			if (externalAttributes != -1) {
+				return externalAttributes;
+			}
+			// MS-DOS directory attribute
+			return isDirectory() ? 0x10 : 0;
+		}
+
+		boolean isDirectory() {
+			return name.length > 0 && name[name.length - 1] == '/';
+		}
+
+		boolean hasDataDescriptor() {
+			return (flags & FLAG_DATA_DESCRIPTOR) != 0;
+		}
+
+		boolean isZip64Size() {
+			return size >= ZipDirectory.ZIP64_MAGICVAL || compressedSize >= ZipDirectory.ZIP64_MAGICVAL;
+		}
+
+		/**
+		 * extended timestamp is written if time fits in 32 bit unix time
+		 */
+		boolean hasExtendedTime() {
+			return time >= 0 && time / 1000 <= Integer.MAX_VALUE;
+		}
+
+		int version(boolean zip64) {
+			if (zip64) {
+				return 45;
+			}
+			return method == ZipEntry.STORED ? 10 : 20;
+		}
+	}
+}
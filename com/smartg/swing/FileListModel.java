@@ -37,12 +37,12 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
 
-import com.smartg.java.util.ThreadManager;
 import com.smartg.java.vfs.Comparators.SortType;
 import com.smartg.java.vfs.IComparator;
 import com.smartg.java.vfs.IComparator.Order;
 import com.smartg.java.vfs.VFile;
 import com.smartg.java.vfs.VFilenameFilter;
+import com.smartg.java.vfs.VfsExecutor;
 import com.smartg.swing.FileList.VParentFile;
 
 public class FileListModel extends SilentListModel<VFile> {
@@ -54,7 +54,10 @@ public class FileListModel extends SilentListModel<VFile> {
     IComparator<VFile> comparator;
     SortType sortType = SortType.ByDate;
 
-    Executor tm = new ThreadManager();
+    /**
+     * refresh and sort run one by one on default VfsExecutor
+     */
+    Executor tm = VfsExecutor.serial(VfsExecutor.getDefault());
 
     ActionListener listener;
 
@@ -88,6 +91,14 @@ public class FileListModel extends SilentListModel<VFile> {
 	this.comparator = comparator;
     }
 
+    /**
+     * Set executor for refresh and sorting. Tasks are executed one by one
+     * (in order of submission) even if executor is multi-threaded.
+     */
+    public void setExecutor(Executor executor) {
+	this.tm = VfsExecutor.serial(executor);
+    }
+
     public VFilenameFilter getFilenameFilter() {
 	return filenameFilter;
     }